@@ -0,0 +1,344 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** Represents a bisection, the binary search for the commit that first
+ *  broke something, between a bad commit and good ones.
+ *
+ *  .gitlet/bisect keeps the search while it runs: the branch it started
+ *  from, then one "bad", "good" or "skip" line per commit marked.  The
+ *  commits tested are checked out on the branch BRANCH, which bisect reset
+ *  removes, going back to the branch it started from.
+ *
+ *  The candidates are the commits the bad one reaches and no good one
+ *  does, found on the commit-graph (see CommitGraph.range).  Each step
+ *  tests the candidate whose ancestors among the candidates are closest
+ *  to half of them, so either answer halves the search.  The number of
+ *  ancestors of a commit is one more than that of its parent when it has
+ *  a single candidate parent, so it takes one pass over the candidates,
+ *  parents first; only merges need a walk of their own.  A linear history
+ *  of n commits takes about log2(n) steps, 14 for 10000.
+ *  @author Hoho
+ */
+class Bisect {
+
+    /** the search in progress */
+    static final File BISECT_FILE = join(Repository.GITLET_DIR, "bisect");
+
+    /** the branch the commits tested are checked out on */
+    static final String BRANCH = "bisect";
+
+    /** exit status of bisect run commands that cannot test a commit */
+    private static final int SKIP_STATUS = 125;
+
+    /** exit statuses from this one up abort bisect run */
+    private static final int ABORT_STATUS = 128;
+
+    /** the last commit marked bad, or null, as read by load */
+    private static String bad;
+    /** the commits marked good */
+    private static LinkedHashSet<String> goods;
+    /** the commits marked skip */
+    private static HashSet<String> skipped;
+    /** the commits left to test after the one pick returned */
+    private static int rest;
+
+    /** starts a search from the current branch, marking the commit BADID
+     *  bad and the commits GOODIDS good unless BADID is null */
+    static void start(String badID, List<String> goodIDs) {
+        StringBuilder contents = new StringBuilder();
+
+        if (BISECT_FILE.exists()) {
+            eventMessageHandler("Already bisecting; run bisect reset first.", true);
+        }
+        if (Branches.getBranches().containsKey(BRANCH)) {
+            eventMessageHandler("A branch with that name already exists.", true);
+        }
+        contents.append("start ").append(Branches.getCurrent()).append('\n');
+        if (badID != null) {
+            contents.append("bad ").append(resolve(badID)).append('\n');
+            for (String good : goodIDs) {
+                contents.append("good ").append(resolve(good)).append('\n');
+            }
+        }
+        writeContents(BISECT_FILE, contents.toString());
+        next();
+    }
+
+    /** marks the commit HASH, or the head if it is null, with KIND (bad,
+     *  good or skip), then checks out the next commit to test */
+    static void mark(String kind, String hash) {
+        mark(kind, hash, true);
+    }
+
+    private static void mark(String kind, String hash, boolean step) {
+        requireBisecting();
+        writeContents(BISECT_FILE, readContentsAsString(BISECT_FILE)
+                + kind + " " + resolve(hash == null ? Branches.getHead() : hash) + "\n");
+        if (step) {
+            next();
+        }
+    }
+
+    /** returns the full id of the commit HASH, maybe abbreviated */
+    private static String resolve(String hash) {
+        Commit c = Commit.getCommitFromHash(hash);
+
+        if (c == null) {
+            eventMessageHandler("No commit with that id exists.", true);
+        }
+        return c.getHash();
+    }
+
+    /** ends the search, going back to the branch it started from */
+    static void reset() {
+        String start;
+
+        requireBisecting();
+        start = readContentsAsString(BISECT_FILE).split("\n")[0].substring("start ".length());
+        if (Branches.getCurrent().equals(BRANCH)) {
+            Branches.checkout(start);
+        }
+        if (Branches.getBranches().containsKey(BRANCH)) {
+            Branches.rmbranch(BRANCH);
+        }
+        BISECT_FILE.delete();
+    }
+
+    /**
+     * runs the command COMMAND in the working directory on every commit
+     * the search tests, marking it by the exit status: 0 good, 125 skip,
+     * anything else up to 127 bad; a status from 128 up (or a command that
+     * cannot be started) stops the search
+     */
+    static void run(List<String> command) {
+        Process process;
+        int status;
+
+        requireBisecting();
+        load();
+        if (bad == null || goods.isEmpty()) {
+            eventMessageHandler("bisect run needs a bad and a good commit.", true);
+        }
+        if (!State.moveHeadAndGet(Bisect::first)) {
+            return;
+        }
+        while (true) {
+            // the command sees the files of the commit tested, and the
+            // lock is not held while it runs
+            StatCache.save();
+            try {
+                process = new ProcessBuilder(command)
+                        .directory(Repository.CWD)
+                        .redirectErrorStream(true)
+                        .start();
+                process.getOutputStream().close();
+                process.getInputStream().transferTo(System.out);
+                status = process.waitFor();
+            } catch (IOException excp) {
+                throw error("bisect run could not start the command: %s", excp.getMessage());
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw error("bisect run was interrupted.");
+            }
+            if (status >= ABORT_STATUS || status < 0) {
+                throw error("bisect run failed: the command exited with %d.", status);
+            }
+            mark(status == 0 ? "good" : status == SKIP_STATUS ? "skip" : "bad", null, false);
+            if (!State.moveHeadAndGet(Bisect::next)) {
+                return;
+            }
+        }
+    }
+
+    /** checks out the first commit bisect run tests, unless bisect start,
+     *  good or bad did already; returns false if the search is over */
+    private static boolean first() {
+        String hash = pick();
+
+        if (hash == null) {
+            return false;
+        }
+        if (!hash.equals(Branches.getHead()) || !Branches.getCurrent().equals(BRANCH)) {
+            report();
+            checkout(hash);
+        }
+        return true;
+    }
+
+    private static void requireBisecting() {
+        if (!BISECT_FILE.exists()) {
+            eventMessageHandler("Not bisecting.", true);
+        }
+    }
+
+    /**
+     * checks out the next commit to test and reports how many are left, or
+     * reports the first bad commit; returns true if there is a commit to
+     * test, false if the search is over or still needs a bad and a good
+     * commit
+     */
+    private static boolean next() {
+        String hash;
+
+        load();
+        if (bad == null || goods.isEmpty()) {
+            System.out.println("Waiting for both good and bad commits.");
+            return false;
+        }
+        hash = pick();
+        if (hash != null) {
+            report();
+            checkout(hash);
+        }
+        return hash != null;
+    }
+
+    private static void report() {
+        System.out.printf("Bisecting: %d revisions left to test after this (roughly %d steps)%n",
+                rest, 32 - Integer.numberOfLeadingZeros(rest));
+    }
+
+    /** reads the marks of the search */
+    private static void load() {
+        String[] words;
+
+        bad = null;
+        goods = new LinkedHashSet<>();
+        skipped = new HashSet<>();
+        for (String line : readContentsAsString(BISECT_FILE).split("\n")) {
+            words = line.split(" ");
+            if (words[0].equals("bad")) {
+                bad = words[1];
+            } else if (words[0].equals("good")) {
+                goods.add(words[1]);
+            } else if (words[0].equals("skip")) {
+                skipped.add(words[1]);
+            }
+        }
+    }
+
+    /**
+     * returns the next commit to test, keeping in rest how many are left
+     * after it, or null once the search is over, reporting its result;
+     * needs a bad and a good commit
+     */
+    private static String pick() {
+        List<Integer> exclude = new ArrayList<>(), candidates;
+        List<String> left = new ArrayList<>();
+        int[] counts;
+        int best = -1, weight = -1, w, n;
+
+        for (String good : goods) {
+            exclude.add(CommitGraph.position(good));
+        }
+        candidates = CommitGraph.range(
+                Collections.singletonList(CommitGraph.position(bad)), exclude);
+        if (candidates.isEmpty()) {
+            eventMessageHandler("The bad commit is an ancestor of a good one.", true);
+        }
+
+        n = candidates.size();
+        counts = ancestorCounts(candidates);
+        for (int i = 0; i < n; i += 1) {
+            if (CommitGraph.id(candidates.get(i)).equals(bad)
+                    || skipped.contains(CommitGraph.id(candidates.get(i)))) {
+                continue;
+            }
+            w = Math.min(counts[i], n - counts[i]);
+            if (w > weight) {
+                best = i;
+                weight = w;
+            }
+        }
+
+        if (best < 0) {
+            if (n == 1) {
+                System.out.println(bad + " is the first bad commit");
+                Commit.getCommitFromHash(bad).printCommit();
+            } else {
+                System.out.println("There are only skipped commits left to test.");
+                System.out.println("The first bad commit could be any of:");
+                for (int c : candidates) {
+                    left.add(CommitGraph.id(c));
+                }
+                Collections.reverse(left);
+                for (String hash : left) {
+                    System.out.println(hash);
+                }
+            }
+            return null;
+        }
+
+        // testing the commit leaves its ancestors or the others
+        rest = Math.max(counts[best] - 1, n - counts[best] - 1);
+        return CommitGraph.id(candidates.get(best));
+    }
+
+    /**
+     * returns, for each of the commits at the graph positions CANDIDATES,
+     * parents first, how many of the candidates it reaches, itself included
+     */
+    private static int[] ancestorCounts(List<Integer> candidates) {
+        HashMap<Integer, Integer> index = new HashMap<>();
+        int[] counts = new int[candidates.size()];
+        Integer p1, p2;
+
+        for (int i = 0; i < candidates.size(); i += 1) {
+            index.put(candidates.get(i), i);
+        }
+        for (int i = 0; i < candidates.size(); i += 1) {
+            p1 = index.get(CommitGraph.firstParent(candidates.get(i)));
+            p2 = index.get(CommitGraph.secondParent(candidates.get(i)));
+            if (p1 != null && p2 != null) {
+                counts[i] = reach(candidates.get(i), index);
+            } else if (p1 != null || p2 != null) {
+                counts[i] = counts[p1 != null ? p1 : p2] + 1;
+            } else {
+                counts[i] = 1;
+            }
+        }
+        return counts;
+    }
+
+    /** returns how many of the commits in INDEX the commit at position
+     *  START reaches, itself included */
+    private static int reach(int start, HashMap<Integer, Integer> index) {
+        HashSet<Integer> seen = new HashSet<>();
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        int c;
+
+        seen.add(start);
+        pending.add(start);
+        while (!pending.isEmpty()) {
+            c = pending.poll();
+            for (int p : new int[] {CommitGraph.firstParent(c), CommitGraph.secondParent(c)}) {
+                if (index.containsKey(p) && seen.add(p)) {
+                    pending.add(p);
+                }
+            }
+        }
+        return seen.size();
+    }
+
+    /** checks out the commit HASH on the branch BRANCH */
+    private static void checkout(String hash) {
+        if (Branches.getCurrent().equals(BRANCH)) {
+            Branches.reset(hash);
+        } else {
+            Branches.setBranch(BRANCH, hash);
+            Branches.checkout(BRANCH);
+        }
+    }
+
+}
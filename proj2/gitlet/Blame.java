@@ -0,0 +1,243 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import static gitlet.Utils.*;
+
+/** Represents blame, which finds for every line of a file the commit that
+ *  brought it in.
+ *
+ *  The first-parent history of the head is walked down over the
+ *  commit-graph, looking the path up in the trees (as History does) to
+ *  find the commits that changed the file, until the file is missing or a
+ *  commit whose origins are cached.  The versions are then replayed oldest
+ *  first: every version is diffed against the one before (see Diff), the
+ *  lines matched keep their origin, and the others get the commit of the
+ *  version.  Replaying forward gives what walking back would, since the
+ *  same pairs of versions are diffed, and it ends with the origins of the
+ *  head, which are cached.
+ *
+ *  .gitlet/blame holds one file per commit and path blamed, named by the
+ *  hash of both: "BLAM", version, the commits lines come from (20-byte
+ *  ids) and, for every line, the index of its commit among them.  A repeat
+ *  blame reads it back; a blame after more commits only replays the
+ *  versions since.  gc drops the cache when it deletes commits.
+ *  @author Hoho
+ */
+class Blame {
+
+    /** version of the cache format */
+    private static final int VERSION = 1;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** the cached origins */
+    static final File CACHE_DIR = join(Repository.GITLET_DIR, "blame");
+
+    /** the origins of the lines of one version of a file */
+    private static class Origins {
+        /** the commits lines come from */
+        private final List<String> commits = new ArrayList<>();
+        /** the index in commits of every line */
+        private int[] lines = new int[0];
+    }
+
+    /** prints every line of the file PATH in the head commit, after the
+     *  commit that brought it in */
+    static void blame(String path) {
+        int head = CommitGraph.position(Branches.getHead());
+        String blob = Tree.lookup(CommitGraph.tree(head), path);
+        ByteBuffer text;
+
+        if (blob == null) {
+            eventMessageHandler("File does not exist in that commit.", true);
+        }
+        text = Blob.getBlobFromHash(blob).getBytes();
+        print(text, Diff.lineStarts(text), origins(head, path, blob));
+    }
+
+    /** returns the origins of the lines of the file PATH, the blob BLOB,
+     *  in the commit at position HEAD */
+    private static Origins origins(int head, String path, String blob) {
+        List<Integer> changes = new ArrayList<>();
+        Origins result = null;
+        String parentBlob;
+        ByteBuffer before, after;
+        int c = head, parent;
+
+        // newest first, the commits changing the file since the last known
+        while (c >= 0 && blob != null) {
+            result = read(CommitGraph.id(c), path, blob);
+            if (result != null) {
+                break;
+            }
+            parent = CommitGraph.firstParent(c);
+            parentBlob = parent < 0 ? null : Tree.lookup(CommitGraph.tree(parent), path);
+            if (!blob.equals(parentBlob)) {
+                changes.add(c);
+            }
+            c = parent;
+            blob = parentBlob;
+        }
+        if (result == null) {
+            result = new Origins();
+            before = ByteBuffer.allocate(0);
+        } else if (changes.isEmpty()) {
+            return result;
+        } else {
+            before = Blob.getBlobFromHash(blob).getBytes();
+        }
+
+        for (int i = changes.size() - 1; i >= 0; i -= 1) {
+            c = changes.get(i);
+            after = Blob.getBlobFromHash(Tree.lookup(CommitGraph.tree(c), path)).getBytes();
+            result = replay(result, before, after, CommitGraph.id(c));
+            before = after;
+        }
+        write(CommitGraph.id(head), path, result);
+        return result;
+    }
+
+    /** returns the origins of the lines of AFTER, the version of COMMIT,
+     *  given those of BEFORE, the version before it */
+    private static Origins replay(Origins origins, ByteBuffer before, ByteBuffer after,
+                                  String commit) {
+        Origins result = new Origins();
+        HashMap<Integer, Integer> kept = new HashMap<>();
+        ByteBuffer[] texts = {before, after};
+        int[][] ids = Diff.lineIds(texts,
+                new int[][] {Diff.lineStarts(before), Diff.lineStarts(after)});
+        int[] matches = Diff.match(ids[0], ids[1]);
+        int own = -1;
+
+        result.lines = new int[ids[1].length];
+        Arrays.fill(result.lines, -1);
+        // the commits lines still come from keep their order
+        for (int i = 0; i < matches.length; i += 1) {
+            if (matches[i] >= 0) {
+                result.lines[matches[i]] = kept.computeIfAbsent(origins.lines[i], k -> {
+                    result.commits.add(origins.commits.get(k));
+                    return result.commits.size() - 1;
+                });
+            }
+        }
+        for (int i = 0; i < result.lines.length; i += 1) {
+            if (result.lines[i] < 0) {
+                if (own < 0) {
+                    result.commits.add(commit);
+                    own = result.commits.size() - 1;
+                }
+                result.lines[i] = own;
+            }
+        }
+        return result;
+    }
+
+    private static void print(ByteBuffer text, int[] starts, Origins origins) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.ENGLISH);
+        StringBuilder out = new StringBuilder();
+        String[] labels = new String[origins.commits.size()];
+        String commit, line;
+        int width = String.valueOf(starts.length - 1).length();
+        byte[] bytes;
+
+        for (int i = 0; i < labels.length; i += 1) {
+            commit = origins.commits.get(i);
+            labels[i] = commit.substring(0, 8) + " (" + format.format(new Date(
+                    CommitGraph.time(CommitGraph.position(commit)))) + " ";
+        }
+        for (int i = 0; i + 1 < starts.length; i += 1) {
+            bytes = new byte[starts[i + 1] - starts[i]];
+            text.duplicate().position(starts[i]).get(bytes);
+            line = new String(bytes, StandardCharsets.UTF_8);
+            if (line.endsWith("\n")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            out.append(labels[origins.lines[i]])
+                    .append(String.format("%" + width + "d", i + 1))
+                    .append(") ").append(line).append('\n');
+        }
+        System.out.print(out);
+    }
+
+    /** the cache file of the file PATH in COMMIT */
+    private static File cacheFile(String commit, String path) {
+        return join(CACHE_DIR, sha1(commit, "\0", path));
+    }
+
+    /** returns the cached origins of the file PATH, the blob BLOB, in
+     *  COMMIT, or null if there are none */
+    private static Origins read(String commit, String path, String blob) {
+        File file = cacheFile(commit, path);
+        Origins result = new Origins();
+        byte[] id = new byte[ID_LENGTH];
+        ByteBuffer buf;
+        int n;
+
+        if (!file.isFile()) {
+            return null;
+        }
+        buf = ByteBuffer.wrap(readContents(file));
+        if (buf.remaining() < 12 || buf.getInt(4) != VERSION) {
+            return null;
+        }
+        buf.position(8);
+        n = buf.getInt();
+        for (int i = 0; i < n; i += 1) {
+            buf.get(id);
+            result.commits.add(bytesToHex(id, 0, ID_LENGTH));
+        }
+        result.lines = new int[buf.getInt()];
+        for (int i = 0; i < result.lines.length; i += 1) {
+            result.lines[i] = buf.getInt();
+        }
+        // a cache that does not fit the file is ignored
+        if (result.lines.length != Diff.lineStarts(
+                Blob.getBlobFromHash(blob).getBytes()).length - 1) {
+            return null;
+        }
+        return result;
+    }
+
+    private static void write(String commit, String path, Origins origins) {
+        File tmp;
+
+        if (!CACHE_DIR.exists()) {
+            CACHE_DIR.mkdir();
+        }
+        try {
+            tmp = File.createTempFile("blame", ".tmp", CACHE_DIR);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeBytes("BLAM");
+                out.writeInt(VERSION);
+                out.writeInt(origins.commits.size());
+                for (String c : origins.commits) {
+                    out.write(hexToBytes(c));
+                }
+                out.writeInt(origins.lines.length);
+                for (int line : origins.lines) {
+                    out.writeInt(line);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        PackFile.move(tmp, cacheFile(commit, path));
+    }
+
+}
@@ -1,56 +1,145 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.Serializable;
-import java.util.TreeSet;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 
 import static gitlet.Utils.*;
 
 /** Represents the file contents and relevant information  \
+ *  the contents are kept deflated as served by the object store (usually
+ *  a mapped region), or raw if a pack resolved them from a delta; they
+ *  are inflated straight into the working file on checkout, and only held
+ *  inflated in memory when a caller asks for the bytes or a String; a
+ *  large file is stored as a manifest of chunks instead (see Chunks),
+ *  which are streamed one after the other
  *  @author Hoho
  */
-public class Blob implements Serializable {
+public class Blob {
 
     /** the hash of the file contents (not the blob itself)
      * i.e. the file name of the blob is determined by the file contents
      */
     private String hash;
-    /* the file contents */
+    /* the file contents as stored, deflated, or a manifest of chunks, or
+     * raw if resolved from a delta */
+    private StoredObject stored;
+    /* the raw file contents, inflated on first use */
+    private ByteBuffer bytes;
+    /* the file contents decoded as UTF-8, built on first use */
     private String contents;
-    /* the set of commit hashes that refers to the blob */
-    private TreeSet<String> refBy;
 
-    public Blob(String hash, String contents) {
+    Blob(String hash, StoredObject stored) {
         this.hash = hash;
-        this.contents = contents;
-        refBy = new TreeSet<>();
+        this.stored = stored;
     }
 
-    public String getContents() {
+    public String getHash() {
+        return hash;
+    }
+
+    public synchronized String getContents() {
+        if (contents == null) {
+            contents = StandardCharsets.UTF_8.decode(getBytes()).toString();
+        }
         return contents;
     }
 
-    // check to see if the blob is referenced by any commits
-    public boolean isOrphan() {
-        return refBy.isEmpty();
+    /** the raw contents, as a read-only view that callers may consume */
+    public synchronized ByteBuffer getBytes() {
+        ByteArrayOutputStream out;
+
+        if (bytes == null && stored.isManifest()) {
+            out = new ByteArrayOutputStream((int) Chunks.length(stored.getData()));
+            try {
+                Chunks.writeTo(stored.getData(), out);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            bytes = ByteBuffer.wrap(out.toByteArray());
+        } else if (bytes == null) {
+            bytes = ByteBuffer.wrap(stored.bytes());
+        }
+        return bytes.asReadOnlyBuffer();
+    }
+
+    /** overwrite FILE with the contents, inflating them chunk by chunk */
+    public void writeTo(File file) {
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            if (stored.isManifest()) {
+                Chunks.writeTo(stored.getData(), out);
+            } else {
+                stored.writeContentsTo(out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** the estimated bytes this blob holds, counting the inflated contents
+     *  (unless they are what was stored) and the String once built */
+    synchronized long footprint() {
+        return ObjectCache.ENTRY_OVERHEAD + stored.getData().remaining()
+                + (bytes == null || stored.isRaw() ? 0 : bytes.capacity())
+                + (contents == null ? 0 : 2L * contents.length());
     }
 
     public static Blob getBlobFromHash(String hash) {
-        File file = createFilePath(Repository.BLOB_DIR, hash, true);
-        if (file != null) {
-            Blob b = readObject(file, Blob.class);
+        Blob b = ObjectCache.get(hash, Blob.class);
+        StoredObject data;
+
+        if (b != null) {
+            return b;
+        }
+        data = readStored(hash);
+        if (data != null) {
+            b = new Blob(hash, data);
+            ObjectCache.put(hash, b, Blob::footprint);
             return b;
         } else {
             return null;
         }
     }
 
-    public void addRef(String commitHash) {
-        refBy.add(commitHash);
+    /** returns the blob HASH as stored, or null if the repository does
+     *  not have it */
+    static StoredObject readStored(String hash) {
+        StoredObject data = ObjectStore.readBlob(hash);
+
+        if (data == null && hash.length() == UID_LENGTH && Remote.promisor() != null) {
+            // a partial clone fetches the blob from where it was cloned
+            Remote.fetchBlobs(Collections.singletonList(hash));
+            data = ObjectStore.readBlob(hash);
+        }
+        return data;
     }
 
-    public void removeRef(String commitHash) {
-        refBy.remove(commitHash);
+    /** fetches at once, in a partial clone, those of the blobs HASHES the
+     *  repository lacks, rather than one by one as they are read */
+    static void prefetch(Collection<String> hashes) {
+        LinkedHashSet<String> missing = new LinkedHashSet<>();
+
+        if (Remote.promisor() == null) {
+            return;
+        }
+        for (String hash : hashes) {
+            if (hash != null && !ObjectStore.contains(ObjectStore.BLOB, hash)) {
+                missing.add(hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Remote.fetchBlobs(missing);
+        }
     }
 
 
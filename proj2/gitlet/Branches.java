@@ -1,7 +1,18 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static gitlet.Utils.*;
 import static gitlet.Utils.eventMessageHandler;
@@ -22,58 +33,82 @@ public class Branches {
     // current branch name
     private static String current;
 
-    public static TreeMap<String, String> getBranches() {
-        return branches;
+    /** most threads writing working files at once; Java 17 has no virtual
+     *  threads, so a bounded pool of platform threads stands in */
+    private static final int WRITERS =
+            Math.min(32, 4 * Runtime.getRuntime().availableProcessors());
+
+    /** checkouts writing fewer files than this stay on the calling thread */
+    private static final int PARALLEL_THRESHOLD = 16;
+
+    /** returns a read-only view of the branch pointers */
+    public static SortedMap<String, String> getBranches() {
+        State.load();
+        return Collections.unmodifiableSortedMap(branches);
     }
 
     public static String getHead() {
+        State.load();
         return head;
     }
 
     public static String getCurrent() {
+        State.load();
         return current;
     }
 
+    /** sets the head, the current branch and the branch pointers read
+     *  from the state file */
+    static void decode(String head, String current, TreeMap<String, String> branches) {
+        Branches.head = head;
+        Branches.current = current;
+        Branches.branches = branches;
+    }
 
     public static void init(String hash) {
+        State.load();
         branches.put("master", hash);
         current = "master";
         head = hash;
+        State.touch();
     }
 
-    public static void load() {
-        head = readContentsAsString(
-                createFilePath(Repository.REF_DIR, "head", false));
-
-        current = readContentsAsString(
-                createFilePath(Repository.REF_DIR, "current", false));
-
-        branches = (TreeMap<String, String>) readObject(createFilePath(Repository.REF_DIR,
-                "branches", false), TreeMap.class);
-    }
-
-    public static void record() {
-        writeContents(createFilePath(
-                Repository.REF_DIR, "head", false), head);
-
-        writeContents(createFilePath(
-                Repository.REF_DIR, "current", false), current);
+    /** starts a repository cloned from another at the commit HASH: points
+     *  master at it and writes its files */
+    static void initFrom(String hash) {
+        List<Map.Entry<String, String>> writes =
+                new ArrayList<>(Commit.getCommitFromHash(hash).getMapping().entrySet());
 
-        writeObject(createFilePath(
-                Repository.REF_DIR, "branches", false), branches);
+        init(hash);
+        checkoutFiles(writes);
     }
 
     public static void updateHead(String hash) {
+        State.load();
         head = hash;
         branches.put(current, head);
+        State.touch();
+    }
+
+    /** points the branch NAME at the commit HASH, creating the branch if
+     *  needed; the head follows its current branch, the working files stay */
+    static void setBranch(String name, String hash) {
+        State.load();
+        branches.put(name, hash);
+        if (name.equals(current)) {
+            head = hash;
+        }
+        State.touch();
     }
 
     // create a new branch with name as argument
     public static void branch(String name) {
+        State.load();
         if (branches.containsKey(name)) {
             eventMessageHandler("A branch with that name already exists.", true);
         }
         Branches.branches.put(name, Branches.head);
+        State.touch();
     }
 
     /** only means to delete the pointer associated with the branch
@@ -81,6 +116,7 @@ public class Branches {
      *  the branch or anything like that.
      */
     public static void rmbranch(String name) {
+        State.load();
         if (!branches.containsKey(name)) {
             eventMessageHandler("A branch with that name does not exist.", true);
         }
@@ -90,12 +126,14 @@ public class Branches {
         }
 
         branches.remove(name);
+        State.touch();
     }
 
     /**
      * @param branch branch name
      */
     public static void checkout(String branch) {
+        State.load();
 
         if (!branches.keySet().contains(branch)) {
             eventMessageHandler("No such branch exists.", true);
@@ -141,22 +179,27 @@ public class Branches {
      * checkout all the files from the commit and overwrite
      * delete all the tracked files not present in the commit
      * with NO SIDE EFFECT on the references
+     * the files are written by a pool of threads, and only once all of
+     * them are written are the tracked files not in the commit deleted,
+     * in order; if any write fails, every failure is reported and the
+     * command aborts before anything is deleted or any reference moves
      * @param commitID on which the update is based
      */
     private static void updateCWD(String commitID) {
         TreeMap<String, String> mappingCheckout, mappingCurrent;
-        File file;
-        String str;
+        List<Map.Entry<String, String>> writes = new ArrayList<>();
 
         mappingCheckout = Commit.getCommitFromHash(commitID).getMapping();
         mappingCurrent = Commit.getCommitFromHash(head).getMapping();
 
-        // checkout all the files from the commit and overwrite
+        // checkout all the files from the commit and overwrite, except those
+        // the stat cache knows to hold the right contents already
         for (Map.Entry<String, String> entry : mappingCheckout.entrySet()) {
-            file = createFilePath(Repository.CWD, entry.getKey(), false);
-            str = Blob.getBlobFromHash(entry.getValue()).getContents();
-            writeContents(file, str);
+            if (!entry.getValue().equals(StatCache.knownHash(entry.getKey()))) {
+                writes.add(entry);
+            }
         }
+        checkoutFiles(writes);
 
         // delete all the tracked files not present in the commit
         for (String filename : mappingCurrent.keySet()) {
@@ -166,10 +209,113 @@ public class Branches {
         }
     }
 
+    /** writes the files WRITES, filename to blob id, and records them in
+     *  the stat cache; aborts listing the files it could not write */
+    private static void checkoutFiles(List<Map.Entry<String, String>> writes) {
+        TreeMap<String, String> failures = writeFiles(writes);
+
+        if (!failures.isEmpty()) {
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                System.out.println(failure.getKey() + ": " + failure.getValue());
+            }
+            StatCache.save();
+            eventMessageHandler("Could not write " + failures.size()
+                    + " file(s); the working directory is only partly updated.", true);
+        }
+        for (Map.Entry<String, String> entry : writes) {
+            StatCache.update(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * writes the blob of every entry of FILES (a filename and a blob hash)
+     * to its working file, on up to WRITERS threads; returns the files that
+     * could not be written, mapped to the reason
+     */
+    private static TreeMap<String, String> writeFiles(List<Map.Entry<String, String>> files) {
+        TreeMap<String, String> failures = new TreeMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        List<Future<Void>> done;
+        List<String> blobs = new ArrayList<>();
+
+        // a partial clone fetches the blobs it lacks in one go
+        for (Map.Entry<String, String> entry : files) {
+            blobs.add(entry.getValue());
+        }
+        Blob.prefetch(blobs);
+        for (Map.Entry<String, String> entry : files) {
+            tasks.add(() -> {
+                writeFile(entry.getKey(), entry.getValue());
+                return null;
+            });
+        }
+        done = runAll(tasks);
+        for (int i = 0; i < files.size(); i += 1) {
+            try {
+                done.get(i).get();
+            } catch (ExecutionException excp) {
+                failures.put(files.get(i).getKey(), String.valueOf(excp.getCause().getMessage()));
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                failures.put(files.get(i).getKey(), "interrupted");
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * starts TASKS on up to WRITERS threads, or runs them on the calling
+     * thread when there are fewer than PARALLEL_THRESHOLD of them
+     * @return the results of the tasks, in the order of TASKS
+     */
+    private static <T> List<Future<T>> runAll(List<Callable<T>> tasks) {
+        List<Future<T>> results = new ArrayList<>();
+        ExecutorService pool;
+        FutureTask<T> inline;
+
+        if (tasks.size() < PARALLEL_THRESHOLD) {
+            for (Callable<T> task : tasks) {
+                inline = new FutureTask<>(task);
+                inline.run();
+                results.add(inline);
+            }
+            return results;
+        }
+
+        pool = Executors.newFixedThreadPool(Math.min(WRITERS, tasks.size()), r -> {
+            Thread t = new Thread(r, "gitlet-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Callable<T> task : tasks) {
+            results.add(pool.submit(task));
+        }
+        // the tasks submitted still run; the threads end with the last one
+        pool.shutdown();
+        return results;
+    }
+
+    private static void writeFile(String filename, String hash) {
+        Blob b = Blob.getBlobFromHash(hash);
+
+        if (b == null) {
+            throw new IllegalArgumentException("missing blob " + hash);
+        }
+        // inflates the stored bytes straight into the working file
+        b.writeTo(join(Repository.CWD, filename));
+    }
+
     public static void reset(String commitID) {
-        if (Commit.getCommitFromHash(commitID) == null) {
+        Commit c;
+
+        State.load();
+        c = Commit.getCommitFromHash(commitID);
+
+        if (c == null) {
             eventMessageHandler("No commit with that id exists.", true);
         }
+        // an abbreviated id must not end up in the branch pointers
+        commitID = c.getHash();
 
         // if a working file is untracked and would be overwritten
         checkUntrackedFiles(commitID);
@@ -187,9 +333,10 @@ public class Branches {
      * @param branch the name of the branch
      * returns the splitHash so that the merge function doesn't
      *               need to compute it again
+     * returns true if the merge is already done, by a fast-forward
      */
-    private static void trivialCaseHandler(String branch,
-                                           String splitHash) {
+    private static boolean trivialCaseHandler(String branch,
+                                              String splitHash) {
         String branchHash;
         String oldBranch;
 
@@ -210,8 +357,12 @@ public class Branches {
             checkout(branch);
             branches.put(oldBranch, head);
             current = oldBranch;
-            eventMessageHandler("Current branch fast-forwarded.", true);
+            State.touch();
+            // not an error: the new head has to be recorded
+            eventMessageHandler("Current branch fast-forwarded.", false);
+            return true;
         }
+        return false;
     }
 
     /**
@@ -222,8 +373,12 @@ public class Branches {
         String splitHash, branchHash, log;
         List<String> conflictFiles = new ArrayList<>();
         TreeMap<String, String> mappingCurrent, mappingMerge, mappingSplit;
+        TreeMap<String, String> renamedCurrent, renamedMerge;
+        Commit commitSplit, commitCurrent, commitMerge;
+        Set<String> candidates;
         File file;
 
+        State.load();
         if (!StagingArea.getStagedForAddition().isEmpty()
                 || !StagingArea.getStagedForRemoval().isEmpty()) {
             eventMessageHandler("You have uncommitted changes.", true);
@@ -238,11 +393,34 @@ public class Branches {
         branchHash = branches.get(branch);
         splitHash = findSplitNode(branchHash, head);
 
-        trivialCaseHandler(branch, splitHash);
+        if (trivialCaseHandler(branch, splitHash)) {
+            return;
+        }
 
-        mappingSplit = Commit.getCommitFromHash(splitHash).getMapping();
-        mappingCurrent = Commit.getCommitFromHash(head).getMapping();
-        mappingMerge = Commit.getCommitFromHash(branchHash).getMapping();
+        commitSplit = Commit.getCommitFromHash(splitHash);
+        commitCurrent = Commit.getCommitFromHash(head);
+        commitMerge = Commit.getCommitFromHash(branchHash);
+
+        // only files changed in the given branch since the split and different
+        // from the current version need a decision; comparing tree hashes
+        // skips every directory where that cannot be the case
+        candidates = Tree.mergeCandidates(commitSplit.getTreeHash(),
+                commitCurrent.getTreeHash(), commitMerge.getTreeHash());
+
+        // a file renamed in one branch and modified in the other is merged
+        // at its new path rather than deleted on one side and added on the other
+        renamedCurrent = Renames.find(commitSplit.getTreeHash(),
+                commitCurrent.getTreeHash(), commitMerge.getTreeHash());
+        renamedMerge = Renames.find(commitSplit.getTreeHash(),
+                commitMerge.getTreeHash(), commitCurrent.getTreeHash());
+        candidates.removeAll(renamedCurrent.keySet());
+        candidates.removeAll(renamedCurrent.values());
+        candidates.removeAll(renamedMerge.keySet());
+        candidates.removeAll(renamedMerge.values());
+
+        mappingSplit = Tree.lookupAll(commitSplit.getTreeHash(), candidates);
+        mappingCurrent = Tree.lookupAll(commitCurrent.getTreeHash(), candidates);
+        mappingMerge = Tree.lookupAll(commitMerge.getTreeHash(), candidates);
 
         for (Map.Entry<String, String> entry : mappingSplit.entrySet()) {
             // both branch contains the file
@@ -254,10 +432,9 @@ public class Branches {
                 if (!mappingMerge.get(entry.getKey()).equals(entry.getValue())
                         && mappingCurrent.get(entry.getKey()).equals(entry.getValue())) {
                     file = createFilePath(Repository.CWD, entry.getKey(), false);
-                    writeContents(file, Blob.getBlobFromHash(
-                            mappingMerge.get(entry.getKey())).getContents());
-                    StagingArea.getStagedForAddition().put(entry.getKey(),
-                            mappingMerge.get(entry.getKey()));
+                    Blob.getBlobFromHash(mappingMerge.get(entry.getKey())).writeTo(file);
+                    StatCache.update(entry.getKey(), mappingMerge.get(entry.getKey()));
+                    StagingArea.stage(entry.getKey(), mappingMerge.get(entry.getKey()));
                 }
             }
 
@@ -267,8 +444,7 @@ public class Branches {
                     && mappingCurrent.get(entry.getKey()).equals(entry.getValue())
                     && !mappingMerge.containsKey(entry.getKey())) {
                 restrictedDelete(entry.getKey());
-                // maybe the map could be replaced by a set later
-                StagingArea.getStagedForRemoval().put(entry.getKey(), null);
+                StagingArea.stageRemoval(entry.getKey(), entry.getValue());
             }
         }
 
@@ -277,29 +453,63 @@ public class Branches {
         for (String filename : mappingMerge.keySet()) {
             if (!mappingSplit.containsKey(filename)
                     && !mappingCurrent.containsKey(filename)) {
-                StagingArea.record();
                 Repository.checkoutFile(filename, branchHash);
                 StagingArea.add(filename);
             }
         }
 
-        conflictFiles = checkConflict(branch, mappingSplit);
-        conflictHandler(conflictFiles, mappingCurrent, mappingMerge);
+        conflictFiles = checkConflict(mappingSplit, mappingCurrent, mappingMerge);
+        followRenames(commitSplit, commitCurrent, commitMerge, renamedCurrent, renamedMerge,
+                mappingSplit, mappingCurrent, mappingMerge, conflictFiles);
+        conflictHandler(conflictFiles, mappingSplit, mappingCurrent, mappingMerge);
 
-        StagingArea.record();
         log = String.format("Merged %s into %s.", branch, current);
         Repository.commit(log, branches.get(branch));
     }
 
-    private static List<String> checkConflict(String branch,
-                                      TreeMap<String, String> mappingSplit) {
-        String branchHash;
-        List<String> conflictFiles = new ArrayList<>();
-        TreeMap<String, String> mappingCurrent, mappingMerge;
+    /**
+     * adds the renamed files to those merged line by line: each is merged
+     * at its new path, from its version at the split point under the old
+     * path, and the old path is removed from the current branch if the
+     * rename happened in the given branch
+     * @param renamedCurrent renames in the current branch, old path to new
+     * @param renamedMerge renames in the given branch, old path to new
+     */
+    private static void followRenames(Commit commitSplit, Commit commitCurrent,
+                                      Commit commitMerge,
+                                      TreeMap<String, String> renamedCurrent,
+                                      TreeMap<String, String> renamedMerge,
+                                      TreeMap<String, String> mappingSplit,
+                                      TreeMap<String, String> mappingCurrent,
+                                      TreeMap<String, String> mappingMerge,
+                                      List<String> conflictFiles) {
+        String oldPath, newPath, hash;
+
+        for (Map.Entry<String, String> rename : renamedCurrent.entrySet()) {
+            oldPath = rename.getKey();
+            newPath = rename.getValue();
+            mappingSplit.put(newPath, Tree.lookup(commitSplit.getTreeHash(), oldPath));
+            mappingCurrent.put(newPath, Tree.lookup(commitCurrent.getTreeHash(), newPath));
+            mappingMerge.put(newPath, Tree.lookup(commitMerge.getTreeHash(), oldPath));
+            conflictFiles.add(newPath);
+        }
+        for (Map.Entry<String, String> rename : renamedMerge.entrySet()) {
+            oldPath = rename.getKey();
+            newPath = rename.getValue();
+            hash = Tree.lookup(commitCurrent.getTreeHash(), oldPath);
+            mappingSplit.put(newPath, Tree.lookup(commitSplit.getTreeHash(), oldPath));
+            mappingCurrent.put(newPath, hash);
+            mappingMerge.put(newPath, Tree.lookup(commitMerge.getTreeHash(), newPath));
+            restrictedDelete(join(Repository.CWD, oldPath));
+            StagingArea.stageRemoval(oldPath, hash);
+            conflictFiles.add(newPath);
+        }
+    }
 
-        branchHash = branches.get(branch);
-        mappingCurrent = Commit.getCommitFromHash(head).getMapping();
-        mappingMerge = Commit.getCommitFromHash(branchHash).getMapping();
+    private static List<String> checkConflict(TreeMap<String, String> mappingSplit,
+                                              TreeMap<String, String> mappingCurrent,
+                                              TreeMap<String, String> mappingMerge) {
+        List<String> conflictFiles = new ArrayList<>();
 
         for (Map.Entry<String, String> entry : mappingSplit.entrySet()) {
             // both branch contains the file
@@ -340,90 +550,89 @@ public class Branches {
         return conflictFiles;
     }
 
-    // helper function
+    /**
+     * merges every file of CONFLICTFILES line by line, on up to WRITERS
+     * threads, and stages the result; only files whose changes overlap
+     * keep conflict markers and are reported as conflicts
+     */
     private static void conflictHandler(List<String> conflictFiles,
+                                        TreeMap<String, String> mappingSplit,
                                         TreeMap<String, String> mappingCurrent,
                                         TreeMap<String, String> mappingMerge) {
-        StringBuilder sb;
+        TreeMap<String, String> failures = new TreeMap<>();
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        List<Future<Boolean>> done;
+        List<String> merged = new ArrayList<>();
 
         for (String filename : conflictFiles) {
-            sb = new StringBuilder("<<<<<<< HEAD\n");
-            if (mappingCurrent.containsKey(filename)) {
-                sb.append(Blob.getBlobFromHash(mappingCurrent.get(filename)).getContents());
+            tasks.add(() -> mergeFile(filename, mappingSplit.get(filename),
+                    mappingCurrent.get(filename), mappingMerge.get(filename)));
+        }
+        done = runAll(tasks);
+        for (int i = 0; i < conflictFiles.size(); i += 1) {
+            try {
+                if (done.get(i).get()) {
+                    System.out.println("Encountered a merge conflict.");
+                }
+                merged.add(conflictFiles.get(i));
+            } catch (ExecutionException excp) {
+                failures.put(conflictFiles.get(i), String.valueOf(excp.getCause().getMessage()));
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                failures.put(conflictFiles.get(i), "interrupted");
             }
-            sb.append("=======\n");
-            if (mappingMerge.containsKey(filename)) {
-                sb.append(Blob.getBlobFromHash(mappingMerge.get(filename)).getContents());
+        }
+        if (!failures.isEmpty()) {
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                System.out.println(failure.getKey() + ": " + failure.getValue());
             }
-            sb.append(">>>>>>>\n");
-
-            writeContents(createFilePath(Repository.CWD, filename, false), sb.toString());
+            eventMessageHandler("Could not merge " + failures.size() + " file(s).", true);
+        }
+        for (String filename : merged) {
             StagingArea.add(filename);
-
-            System.out.println("Encountered a merge conflict.");
         }
-
     }
 
-
     /**
-     * find the split node given the two commit hashes using BSF graph traversal
-     * @param hash1 the hash for the first commit
-     * @param hash2 the hash for the second commit
-     * @return the hash for the split node found by the algorithm
+     * writes the line-level merge of a file to the working directory
+     * @param filename the name of the file
+     * @param split the hash of its version at the split point, or null
+     * @param ours the hash of its version in the current branch, or null
+     * @param theirs the hash of its version in the given branch, or null
+     * @return true if the changes of both branches overlap
      */
-    private static String findSplitNode(String hash1, String hash2) {
-        Map<String, Integer> dist1 = ancestorDistances(hash1);
-        Map<String, Integer> dist2 = ancestorDistances(hash2);
+    private static boolean mergeFile(String filename, String split,
+                                     String ours, String theirs) throws IOException {
+        File file = createFilePath(Repository.CWD, filename, false);
 
-        String best = null;
-        int bestScore = Integer.MAX_VALUE;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+            return LineMerge.merge(blobBytes(split), blobBytes(ours), blobBytes(theirs), out);
+        }
+    }
 
-        for (String h : dist1.keySet()) {
-            if (dist2.containsKey(h)) {
-                int score = dist1.get(h) + dist2.get(h);
+    /** returns the contents of the blob HASH, empty if HASH is null */
+    private static ByteBuffer blobBytes(String hash) {
+        Blob b;
 
-                if (score < bestScore) {
-                    bestScore = score;
-                    best = h;
-                }
-            }
+        if (hash == null) {
+            return ByteBuffer.allocate(0);
         }
-
-        return best;   // may be null theoretically, but root guarantees one
+        b = Blob.getBlobFromHash(hash);
+        if (b == null) {
+            throw new IllegalArgumentException("missing blob " + hash);
+        }
+        return b.getBytes();
     }
 
     /**
-     * helper method for finding the split node
+     * find the split node given the two commit hashes using the commit-graph,
+     * so that no commit object is opened on the way
+     * @param hash1 the hash for the first commit
+     * @param hash2 the hash for the second commit
+     * @return the hash for the split node found by the algorithm
      */
-    private static Map<String, Integer> ancestorDistances(String startHash) {
-        Map<String, Integer> dist = new TreeMap<>();
-        Queue<String> q = new LinkedList<>();
-
-        dist.put(startHash, 0);
-        q.add(startHash);
-
-        while (!q.isEmpty()) {
-            String h = q.poll();
-            int d = dist.get(h);
-
-            Commit c = Commit.getCommitFromHash(h);
-
-            if (c.getParentHash() != null && !dist.containsKey(c.getParentHash())) {
-                dist.put(c.getParentHash(), d + 1);
-                q.add(c.getParentHash());
-            }
-
-            if (c.getParentHash2() != null && !dist.containsKey(c.getParentHash2())) {
-                dist.put(c.getParentHash2(), d + 1);
-                q.add(c.getParentHash2());
-            }
-        }
-
-        return dist;
+    private static String findSplitNode(String hash1, String hash2) {
+        return CommitGraph.mergeBase(hash1, hash2);   // root guarantees one
     }
 
-
-
-
 }
@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Utils.*;
+
+/** Measures how fast checkout writes blobs back to the working directory,
+ *  comparing deflated blobs with blobs kept as plain uncompressed bytes.
+ *
+ *  The baseline is raw bytes, read or mapped the way loose blobs were
+ *  before they were deflated, not the serialized Blob holding a String
+ *  that gitlet first stored; that format was gone already, so this only
+ *  prices the compression itself.
+ *
+ *  Run it from an empty directory, where it builds a scratch repository:
+ *      java gitlet.CheckoutBenchmark [files] [rounds]
+ *  A corpus of FILES (10000 by default) text files of 1 to 16KB is stored
+ *  both ways: deflated through the object store, and as raw bytes in
+ *  .gitlet/raw.  Every round deletes the corpus and restores it once from
+ *  each format; the best round of each is reported along with the size of
+ *  both stores.
+ *  @author Hoho
+ */
+public class CheckoutBenchmark {
+
+    /** words the corpus is made of, so that it compresses like text */
+    private static final String[] WORDS = {
+        "the", "commit", "branch", "merge", "file", "tree", "blob", "of",
+        "and", "public", "static", "void", "return", "if", "else", "for",
+        "String", "int", "new", "null", "hash", "head", "to", "a", "is",
+    };
+
+    /** raw blobs smaller than this are read rather than mapped, as loose
+     *  objects are */
+    private static final long MAP_THRESHOLD = 16 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File corpus = join(Repository.CWD, "corpus");
+        File rawDir = join(Repository.GITLET_DIR, "raw");
+        List<String> hashes = new ArrayList<>();
+        long bytes = 0, start, bestRaw = Long.MAX_VALUE, bestDeflated = Long.MAX_VALUE;
+
+        if (Repository.GITLET_DIR.exists() || corpus.exists()) {
+            eventMessageHandler("Run the benchmark in an empty directory.", true);
+        }
+        Repository.setupPersistence();
+        rawDir.mkdir();
+        corpus.mkdir();
+
+        generate(corpus, files, new Random(61));
+        for (int i = 0; i < files; i += 1) {
+            File file = join(corpus, name(i));
+            String hash = ObjectStore.writeLoose(ObjectStore.BLOB, file);
+            Files.copy(file.toPath(), join(rawDir, hash).toPath());
+            hashes.add(hash);
+            bytes += file.length();
+        }
+
+        for (int r = 0; r < rounds; r += 1) {
+            clear(corpus);
+            start = System.nanoTime();
+            for (int i = 0; i < files; i += 1) {
+                File raw = join(rawDir, hashes.get(i));
+                ByteBuffer data = raw.length() < MAP_THRESHOLD
+                        ? ByteBuffer.wrap(readContents(raw)) : mapContents(raw);
+                writeContents(join(corpus, name(i)), data);
+            }
+            bestRaw = Math.min(bestRaw, System.nanoTime() - start);
+
+            clear(corpus);
+            start = System.nanoTime();
+            for (int i = 0; i < files; i += 1) {
+                Blob.getBlobFromHash(hashes.get(i)).writeTo(join(corpus, name(i)));
+            }
+            bestDeflated = Math.min(bestDeflated, System.nanoTime() - start);
+        }
+
+        // the last restore has to give back exactly what was stored
+        for (int i = 0; i < files; i += 1) {
+            if (!sha1(join(corpus, name(i))).equals(hashes.get(i))) {
+                throw error("Restored %s does not match its blob.", name(i));
+            }
+        }
+
+        System.out.printf("%d files, %.1f MB of text, best of %d rounds%n",
+                files, bytes / 1e6, rounds);
+        report("raw", bestRaw, files, bytes, size(rawDir));
+        report("deflated", bestDeflated, files, bytes, size(Repository.BLOB_DIR));
+    }
+
+    private static void report(String format, long nanos, int files, long bytes, long stored) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-9s %8.0f files/s %8.1f MB/s   store %7.1f MB (%.2fx)%n",
+                format, files / seconds, bytes / 1e6 / seconds, stored / 1e6,
+                (double) bytes / stored);
+    }
+
+    private static String name(int i) {
+        return String.format("f%05d.txt", i);
+    }
+
+    /** writes FILES text files of 1 to 16KB into DIR */
+    private static void generate(File dir, int files, Random random) {
+        StringBuilder sb = new StringBuilder();
+        int size;
+
+        for (int i = 0; i < files; i += 1) {
+            sb.setLength(0);
+            size = 1024 + random.nextInt(15 * 1024);
+            while (sb.length() < size) {
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+                sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+            writeContents(join(dir, name(i)), sb.toString());
+        }
+    }
+
+    private static void clear(File dir) {
+        for (String name : plainFilenamesIn(dir)) {
+            join(dir, name).delete();
+        }
+    }
+
+    private static long size(File dir) {
+        long total = 0;
+        for (String name : plainFilenamesIn(dir)) {
+            total += join(dir, name).length();
+        }
+        return total;
+    }
+
+}
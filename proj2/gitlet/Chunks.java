@@ -0,0 +1,290 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** Represents the chunking of large files, so that the versions of a file
+ *  share the parts they have in common.
+ *
+ *  A file of THRESHOLD bytes or more is cut into chunks where its contents
+ *  say so, not at fixed offsets: FastCDC rolls a gear hash over the bytes
+ *  and cuts where the hash has enough zero bits, so an insertion only
+ *  moves the cuts next to it and the chunks after it come out the same.
+ *  The cut is never less than MIN_SIZE nor more than MAX_SIZE after the
+ *  last one, and more zero bits are asked for before AVERAGE_SIZE than
+ *  after, which keeps chunk sizes close to the average (normalized
+ *  chunking).
+ *
+ *  Every chunk is stored as a blob of its own, so chunks are shared
+ *  between all the versions and all the files that have them.  The file
+ *  itself is stored, under the id of its whole contents as any blob, as
+ *  a manifest listing its chunks:
+ *
+ *    "CHNK", the length of the file, the number of chunks, then for every
+ *    chunk its 20-byte id and its length
+ *
+ *  A manifest is not deflated; its magic cannot start a zlib stream, which
+ *  tells it apart from the other blobs.  Blob rebuilds the file by
+ *  streaming the chunks one after the other.
+ *  @author Hoho
+ */
+class Chunks {
+
+    /** files this large or larger are chunked */
+    static final long THRESHOLD = 1 << 20;
+
+    /* chunk sizes */
+    private static final int MIN_SIZE = 16 * 1024;
+    private static final int AVERAGE_SIZE = 64 * 1024;
+    private static final int MAX_SIZE = 256 * 1024;
+
+    /** bits of the hash that have to be zero for a cut before AVERAGE_SIZE
+     *  (two more than log2 of it) and after (two fewer); the hash takes the
+     *  byte it rolls in into its lowest bit, so the top bits, which depend
+     *  on the most bytes, are the ones looked at */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+    private static final long MASK_LARGE = -1L << (64 - 14);
+
+    /** what a manifest starts with */
+    private static final byte[] MAGIC = "CHNK".getBytes(StandardCharsets.US_ASCII);
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** bytes of a manifest before the chunks, and for every chunk */
+    private static final int HEADER = 16;
+    private static final int ENTRY = ID_LENGTH + 4;
+
+    /** the random value of every byte the gear hash rolls in; drawn from
+     *  SplitMix64 with a fixed seed, since changing them would move every
+     *  cut */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long x = 0x676974C3A9746CL;
+        long z;
+
+        for (int i = 0; i < GEAR.length; i += 1) {
+            x += 0x9E3779B97F4A7C15L;
+            z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * stores the file SOURCE as chunks and a manifest, writing only the
+     * chunks the repository does not have yet, and returns the id of its
+     * contents
+     */
+    static String write(File source) {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream manifest = new DataOutputStream(entries);
+        MessageDigest whole = newDigest();
+        byte[] buf = new byte[MAX_SIZE], chunk;
+        long length = 0;
+        int count = 0, filled = 0, cut, n;
+        boolean eof = false;
+        String hash, id;
+
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            while (true) {
+                while (!eof && filled < buf.length) {
+                    n = in.read(buf, filled, buf.length - filled);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        filled += n;
+                    }
+                }
+                if (filled == 0) {
+                    break;
+                }
+                cut = cut(buf, filled);
+                chunk = Arrays.copyOf(buf, cut);
+                whole.update(chunk);
+                id = sha1((Object) chunk);
+                if (!ObjectStore.freshen(ObjectStore.BLOB, id)) {
+                    ObjectStore.writeLoose(ObjectStore.BLOB, id, chunk);
+                }
+                manifest.write(hexToBytes(id));
+                manifest.writeInt(cut);
+                length += cut;
+                count += 1;
+                System.arraycopy(buf, cut, buf, 0, filled - cut);
+                filled -= cut;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        hash = digestToHex(whole);
+        if (!ObjectStore.freshen(ObjectStore.BLOB, hash)) {
+            ObjectStore.writeStored(ObjectStore.BLOB, hash,
+                    ByteBuffer.allocate(HEADER + entries.size())
+                            .put(MAGIC).putLong(length).putInt(count)
+                            .put(entries.toByteArray()).array());
+        }
+        return hash;
+    }
+
+    /**
+     * returns where to cut the first N bytes of BUF, FastCDC style: the
+     * length of the first chunk
+     */
+    static int cut(byte[] buf, int n) {
+        int normal = AVERAGE_SIZE, i;
+        long hash = 0;
+
+        if (n <= MIN_SIZE) {
+            return n;
+        }
+        if (n > MAX_SIZE) {
+            n = MAX_SIZE;
+        }
+        if (n < normal) {
+            normal = n;
+        }
+        for (i = MIN_SIZE; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i;
+            }
+        }
+        for (; i < n; i += 1) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    /** returns true if the blob stored as STORED is a manifest */
+    static boolean isManifest(ByteBuffer stored) {
+        if (stored == null || stored.remaining() < HEADER) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i += 1) {
+            if (stored.get(stored.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** returns the length of the file of the manifest MANIFEST */
+    static long length(ByteBuffer manifest) {
+        return manifest.getLong(manifest.position() + MAGIC.length);
+    }
+
+    /** returns the chunks of the manifest MANIFEST, id to length, in order */
+    static LinkedHashMap<String, Integer> list(ByteBuffer manifest) {
+        LinkedHashMap<String, Integer> result = new LinkedHashMap<>();
+        int start = manifest.position();
+        int count = manifest.getInt(start + MAGIC.length + 8);
+        byte[] id = new byte[ID_LENGTH];
+        ByteBuffer buf = manifest.duplicate();
+
+        buf.position(start + HEADER);
+        for (int i = 0; i < count; i += 1) {
+            buf.get(id);
+            // a chunk found twice in a file is listed twice by the manifest
+            result.merge(bytesToHex(id, 0, ID_LENGTH), buf.getInt(), (a, b) -> a);
+        }
+        return result;
+    }
+
+    /** streams the file of the manifest MANIFEST to OUT, chunk by chunk */
+    static void writeTo(ByteBuffer manifest, OutputStream out) throws IOException {
+        int start = manifest.position();
+        int count = manifest.getInt(start + MAGIC.length + 8);
+        byte[] id = new byte[ID_LENGTH];
+        ByteBuffer buf = manifest.duplicate();
+        StoredObject chunk;
+        String hash;
+
+        buf.position(start + HEADER);
+        for (int i = 0; i < count; i += 1) {
+            buf.get(id);
+            buf.getInt();
+            hash = bytesToHex(id, 0, ID_LENGTH);
+            chunk = Blob.readStored(hash);
+            if (chunk == null) {
+                throw new IllegalArgumentException("missing chunk " + hash);
+            }
+            chunk.writeContentsTo(out);
+        }
+    }
+
+    /**
+     * adds to OUT, as blobs, the chunks of the blob HASH that the blob BASE
+     * (null for none) does not have, if HASH is chunked; the blobs have to
+     * be in the repository
+     */
+    static void collect(String hash, String base, Map<String, Byte> out) {
+        StoredObject stored = Blob.readStored(hash), old;
+        HashSet<String> known = new HashSet<>();
+
+        if (stored == null || !stored.isManifest()) {
+            return;
+        }
+        old = base == null ? null : Blob.readStored(base);
+        if (old != null && old.isManifest()) {
+            known.addAll(list(old.getData()).keySet());
+        }
+        for (String chunk : list(stored.getData()).keySet()) {
+            if (!known.contains(chunk)) {
+                out.putIfAbsent(chunk, ObjectStore.BLOB);
+            }
+        }
+    }
+
+    /** returns the id of the file of the manifest MANIFEST, reading back
+     *  its chunks */
+    static String digest(ByteBuffer manifest) {
+        MessageDigest md = newDigest();
+
+        try {
+            writeTo(manifest, new OutputStream() {
+                @Override
+                public void write(int b) {
+                    md.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    md.update(b, off, len);
+                }
+            });
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return digestToHex(md);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+}
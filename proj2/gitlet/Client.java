@@ -0,0 +1,83 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static gitlet.Utils.*;
+
+/** Represents the thin client of the daemon.
+ *
+ *  java gitlet.Client ARGS behaves like java gitlet.Main ARGS, but runs the
+ *  command on the daemon serving the repository of the working directory
+ *  (see Daemon), and prints its output.  Without a daemon, the command
+ *  runs in this process.
+ *  @author Hoho
+ */
+public class Client {
+
+    public static void main(String[] args) {
+        byte[] buffer = new byte[8192];
+        int n;
+
+        // bisect run starts commands that may well call gitlet, which the
+        // daemon could not serve while it runs bisect itself
+        if (args.length > 1 && args[0].equals("bisect") && args[1].equals("run")) {
+            Main.main(args);
+            return;
+        }
+        try (Socket socket = connect(Repository.GITLET_DIR)) {
+            if (socket == null) {
+                Main.main(args);
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            InputStream in = socket.getInputStream();
+            while ((n = in.read(buffer)) > 0) {
+                System.out.write(buffer, 0, n);
+            }
+            System.out.flush();
+        } catch (IOException excp) {
+            System.out.println("Lost the connection to the daemon: " + excp.getMessage());
+        }
+    }
+
+    /** returns a connection to the daemon serving the repository whose
+     *  .gitlet folder is GITLET, its token already sent, or null if none
+     *  runs */
+    static Socket connect(File gitlet) {
+        File daemonFile = join(gitlet, Daemon.DAEMON_FILE.getName());
+        String[] lines;
+        Socket socket = null;
+
+        if (!daemonFile.isFile()) {
+            return null;
+        }
+        try {
+            lines = readContentsAsString(daemonFile).split("\n");
+            socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(lines[0]));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(lines[1]);
+            return socket;
+        } catch (IOException | RuntimeException excp) {
+            // a daemon that is gone left its file behind
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // nothing more to do
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -1,16 +1,33 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static gitlet.Utils.*;
 
 /** Represents a gitlet commit object.
+ *
+ *  Commits are stored in a compact versioned binary format:
+ *    - version byte
+ *    - header length, then the header: date (ms since the epoch), the id of
+ *      the root tree and each parent as 20 raw bytes (preceded by their
+ *      number), message length and message
+ *  The id of a commit is the SHA-1 of that encoding.  The files of a commit
+ *  live in its tree (see Tree), which shares every unchanged directory with
+ *  the parent's tree, so writing a commit only costs the changed entries.
+ *  The file map is only built the first time getMapping() is called, so
+ *  log and find never pay for it.
  *  @author Hoho
  */
-public class Commit implements Serializable {
+public class Commit {
     /**
      * List all instance variables of the Commit class here with a useful
      * comment above them describing what that variable represents and how that
@@ -30,15 +47,23 @@ public class Commit implements Serializable {
     private String parentHash;
     private String parentHash2; // for merging only
 
-    /** a map from filenames to hash strings
+    /** The hash value of the root tree holding the files of the commit */
+    private String treeHash;
+
+    /** a map from filenames to hash strings, built from the tree on demand
      * always have the same order compared to HashMap */
     private TreeMap<String, String> fileMap;
 
+    /** version of the binary format written by record() */
+    private static final byte VERSION = 2;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
 
     /* FUCNTIONS */
-    public Commit() {
-        this.message = "";
-        // this.date = 0;
+    private Commit(String hash) {
+        this.hash = hash;
     }
 
     public Commit(String message, Date date, String parent, String parent2) {
@@ -47,52 +72,153 @@ public class Commit implements Serializable {
         hash = null;
         parentHash = parent;
         parentHash2 = parent2;
-        fileMap = new TreeMap<>();
+        treeHash = Tree.EMPTY;
 
         if (parent != null) {
             // inherit from parent's committed snapshot of files by default
-            fileMap = getCommitFromHash(parent).getMapping();
+            treeHash = getCommitFromHash(parent).getTreeHash();
             update();
+        } else {
+            Tree.write(new TreeMap<>());
         }
 
         record();
     }
 
     public String getHash() {
-        if (hash == null) {
-            hash = computeHash(this);
-        }
         return hash;
     }
 
-    public TreeMap<String, String> getMapping() {
+    public synchronized TreeMap<String, String> getMapping() {
+        if (fileMap == null) {
+            fileMap = Tree.flatten(treeHash);
+        }
         return fileMap;
     }
 
-    public String computeHash(Commit c) {
-        return sha1(serialize(this));
+    public String getTreeHash() {
+        return treeHash;
+    }
+
+    /** the blob hash of FILENAME in this commit, null if it is not tracked */
+    public synchronized String getFileHash(String filename) {
+        if (fileMap != null) {
+            return fileMap.get(filename);
+        }
+        return Tree.lookup(treeHash, filename);
     }
 
     private void record() {
-        if (hash == null) {
-            hash = computeHash(this);
+        byte[] data = encode();
+
+        hash = sha1(data);
+        ObjectStore.writeLoose(ObjectStore.COMMIT, hash, data);
+        CommitGraph.add(hash, parentHash, parentHash2, date.getTime(), treeHash);
+        CommitIndex.add(hash);
+        MessageIndex.add(hash, message);
+    }
+
+    /**
+     * records the commits HASHES, received from another repository, in the
+     * commit-graph and the indexes; parents come before their children,
+     * and shallow commits (see Shallow) are recorded without them
+     */
+    static void index(List<String> hashes) {
+        Commit c;
+
+        for (String h : hashes) {
+            c = getCommitFromHash(h);
+            if (Shallow.contains(h)) {
+                CommitGraph.add(h, null, null, c.date.getTime(), c.treeHash);
+            } else {
+                CommitGraph.add(h, c.parentHash, c.parentHash2, c.date.getTime(), c.treeHash);
+            }
+            MessageIndex.add(h, c.message);
         }
-        File outFile = createFilePath(Repository.COMMIT_DIR, hash, false);
-        writeObject(outFile, this);
+        CommitIndex.addAll(hashes);
+    }
+
+    /** returns the binary encoding of this commit */
+    private byte[] encode() {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
 
-        return;
+        try {
+            DataOutputStream out = new DataOutputStream(header);
+            byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+
+            out.writeLong(date.getTime());
+            out.write(hexToBytes(treeHash));
+            out.writeByte(parentHash == null ? 0 : (parentHash2 == null ? 1 : 2));
+            if (parentHash != null) {
+                out.write(hexToBytes(parentHash));
+            }
+            if (parentHash2 != null) {
+                out.write(hexToBytes(parentHash2));
+            }
+            out.writeInt(msg.length);
+            out.write(msg);
+
+            out = new DataOutputStream(stream);
+            out.writeByte(VERSION);
+            out.writeInt(header.size());
+            header.writeTo(out);
+            out.close();
+        } catch (IOException excp) {
+            throw error("Internal error encoding commit.");
+        }
+        return stream.toByteArray();
+    }
+
+    /** decode the commit HASH stored in DATA */
+    private static Commit decode(String hash, ByteBuffer data) {
+        Commit c = new Commit(hash);
+        ByteBuffer buf = data.duplicate();
+        byte[] bytes;
+        int parents;
+
+        if (buf.get() != VERSION) {
+            throw error("Unknown commit format in %s.", hash);
+        }
+        buf.getInt();
+
+        c.date = new Date(buf.getLong());
+        c.treeHash = readId(buf);
+        parents = buf.get();
+        if (parents > 0) {
+            c.parentHash = readId(buf);
+        }
+        if (parents > 1) {
+            c.parentHash2 = readId(buf);
+        }
+        bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        c.message = new String(bytes, StandardCharsets.UTF_8);
+        return c;
+    }
+
+    /** read one raw 20-byte id from BUF as a hexadecimal string */
+    private static String readId(ByteBuffer buf) {
+        byte[] id = new byte[ID_LENGTH];
+        buf.get(id);
+        return bytesToHex(id, 0, ID_LENGTH);
     }
 
     private void update() {
+        TreeMap<String, String> changes = new TreeMap<>();
+
         for (Map.Entry<String, String> staged : StagingArea.getStagedForAddition().entrySet()) {
             // track new files and update files based on staged area for adding
-            fileMap.put(staged.getKey(), staged.getValue());
+            changes.put(staged.getKey(), staged.getValue());
         }
 
         for (Map.Entry<String, String> staged : StagingArea.getStagedForRemoval().entrySet()) {
             // files tracked in the current commit will be untracked in the new commit
-            fileMap.remove(staged.getKey());
+            changes.put(staged.getKey(), null);
         }
+
+        // only the trees on the changed paths are rewritten
+        treeHash = Tree.update(treeHash, changes);
     }
 
     public String getParentHash() {
@@ -107,6 +233,10 @@ public class Commit implements Serializable {
         return message;
     }
 
+    public Date getDate() {
+        return date;
+    }
+
     public void printCommit() {
         // formatting target example: Thu Nov 9 20:00:05 2017 -0800
         SimpleDateFormat sdf = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
@@ -128,39 +258,58 @@ public class Commit implements Serializable {
     }
 
     public static Commit getCommitFromHash(String hash) {
-        String [] fileList;
+        ByteBuffer data;
         Commit c;
-        File inFile;
 
         // handle the case where the input is just the first six digits of the hash
         if (hash.length() < 40) {
-            // find the match from the hashes in the commit dir
-            fileList = Repository.COMMIT_DIR.list();
-            Arrays.sort(fileList);
-
-            for (String h : fileList) {
-                if (h.substring(0, hash.length()).equals(hash)) {
-                    hash = h;
-                    break; // just find the first match?
-                }
+            // binary search of the sorted commit index, aborts if ambiguous
+            hash = CommitIndex.resolve(hash);
+            if (hash == null) {
+                return null;
             }
         }
 
-        inFile = createFilePath(Repository.COMMIT_DIR, hash, true);
-        if (inFile != null) {
-            c = readObject(inFile, Commit.class);
+        c = ObjectCache.get(hash, Commit.class);
+        if (c != null) {
+            return c;
+        }
+        data = ObjectStore.read(ObjectStore.COMMIT, hash);
+        if (data != null) {
+            c = decode(hash, data);
+            ObjectCache.put(hash, c, Commit::footprint);
             return c;
         }
         return null;
     }
 
+    /** the estimated bytes this commit holds, its file map included once built */
+    private synchronized long footprint() {
+        long total = ObjectCache.ENTRY_OVERHEAD + 2L * message.length();
+
+        if (fileMap != null) {
+            total += fileMap.size() * (ObjectCache.ENTRY_OVERHEAD + 2L * UID_LENGTH);
+        }
+        return total;
+    }
+
+    /**
+     * decodes the commits IDS in parallel on the common fork-join pool and
+     * returns F applied to each of them, in the order of IDS
+     */
+    public static <T> List<T> decodeAll(List<String> ids, Function<Commit, T> f) {
+        return ids.parallelStream()
+                .map(h -> f.apply(getCommitFromHash(h)))
+                .collect(Collectors.toList());
+    }
+
     // for debug only
     private void debugPrint() {
         System.out.println(this.message);
         System.out.println(this.date);
         System.out.println(this.hash);
         System.out.println(this.parentHash);
-        System.out.println(this.fileMap);
+        System.out.println(this.getMapping());
     }
 
     public static void main(String[] args) {
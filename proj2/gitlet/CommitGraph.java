@@ -0,0 +1,411 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/** Represents the commit-graph, a compact copy of the parent links of every
+ *  commit that answers ancestry questions without opening commit objects.
+ *
+ *  .gitlet/commit-graph holds a small header followed by one fixed-size
+ *  record per commit, in the order the commits were added, so that the
+ *  parents of a commit always come before it:
+ *      20-byte id, index of the first parent, index of the second parent
+ *      (-1 when absent), generation number, commit time in milliseconds,
+ *      20-byte id of the root tree
+ *  The generation of a root commit is 1, the generation of any other
+ *  commit is one more than the largest generation of its parents, so a
+ *  commit can only be an ancestor of commits with a larger generation.
+ *  The time and the tree let log walk and filter the history without
+ *  opening the commits it does not print (see History).
+ *  New commits are appended, over a record a crash left cut short; a
+ *  repository without the file gets it rebuilt from the commit objects
+ *  the first time it is needed.
+ *  @author Hoho
+ */
+public class CommitGraph {
+
+    /** version of the file format */
+    private static final int VERSION = 2;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** size of the header: magic and version */
+    private static final int HEADER = 8;
+
+    /** size of one record: id, two parents, generation, time and tree */
+    private static final int RECORD = 2 * ID_LENGTH + 20;
+
+    /** the commit-graph file */
+    static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+
+    /* flags used while painting the graph in mergeBase and range */
+    private static final int FROM_ONE = 1;
+    private static final int FROM_TWO = 2;
+
+    /** commit ids in graph order */
+    private static List<String> ids;
+    /** position of every commit id in graph order */
+    private static HashMap<String, Integer> positions;
+    /** first parent of every commit, -1 for none */
+    private static int[] parent1;
+    /** second parent of every commit, -1 for none */
+    private static int[] parent2;
+    /** generation number of every commit */
+    private static int[] generation;
+    /** commit time of every commit, in milliseconds */
+    private static long[] time;
+    /** raw root tree id of every commit, ID_LENGTH bytes each */
+    private static byte[] trees;
+    /** stamp of the graph file as read or last written */
+    private static Object readStamp;
+
+    /** makes sure the graph is loaded, rebuilding the file if it is missing */
+    private static synchronized void load() {
+        ByteBuffer buf;
+        byte[] id = new byte[ID_LENGTH];
+        int n;
+
+        if (ids != null) {
+            return;
+        }
+        readStamp = stamp(GRAPH_FILE);
+        if (!GRAPH_FILE.isFile()) {
+            rebuild();
+            return;
+        }
+
+        buf = ByteBuffer.wrap(readContents(GRAPH_FILE));
+        if (buf.remaining() < HEADER || buf.getInt(4) != VERSION) {
+            rebuild();
+            return;
+        }
+        // a record cut short by a crash is ignored
+        n = (buf.remaining() - HEADER) / RECORD;
+        init(n);
+        buf.position(HEADER);
+        for (int i = 0; i < n; i += 1) {
+            buf.get(id);
+            ids.add(bytesToHex(id, 0, ID_LENGTH));
+            positions.put(ids.get(i), i);
+            parent1[i] = buf.getInt();
+            parent2[i] = buf.getInt();
+            generation[i] = buf.getInt();
+            time[i] = buf.getLong();
+            buf.get(trees, i * ID_LENGTH, ID_LENGTH);
+        }
+    }
+
+    private static void init(int capacity) {
+        ids = new ArrayList<>(capacity);
+        positions = new HashMap<>(2 * capacity + 16);
+        parent1 = new int[Math.max(capacity, 16)];
+        parent2 = new int[Math.max(capacity, 16)];
+        generation = new int[Math.max(capacity, 16)];
+        time = new long[Math.max(capacity, 16)];
+        trees = new byte[Math.max(capacity, 16) * ID_LENGTH];
+    }
+
+    /** rewrites the graph file from the commit objects of the repository */
+    private static void rebuild() {
+        init(0);
+        for (String hash : ObjectStore.list(ObjectStore.COMMIT)) {
+            insert(hash);
+        }
+        IndexLock.run(() -> {
+            File tmp = join(Repository.GITLET_DIR, "commit-graph.tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeBytes("CGPH");
+                out.writeInt(VERSION);
+                for (int i = 0; i < ids.size(); i += 1) {
+                    writeRecord(out, i);
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            PackFile.move(tmp, GRAPH_FILE);
+            readStamp = stamp(GRAPH_FILE);
+        });
+    }
+
+    /** forgets the graph if DISCARD is set or the file changed since it was
+     *  read, so that the next use reads it again */
+    static synchronized void refresh(boolean discard) {
+        if (ids != null && (discard || !Objects.equals(readStamp, stamp(GRAPH_FILE)))) {
+            ids = null;
+        }
+    }
+
+    /** adds HASH and, first, any of its ancestors missing from memory */
+    private static int insert(String hash) {
+        List<String> pending = new ArrayList<>();
+        Commit c;
+        String h, p1, p2;
+
+        pending.add(hash);
+        while (!pending.isEmpty()) {
+            h = pending.get(pending.size() - 1);
+            if (positions.containsKey(h)) {
+                pending.remove(pending.size() - 1);
+                continue;
+            }
+            c = Commit.getCommitFromHash(h);
+            // the parents of a shallow commit are not in the repository
+            p1 = Shallow.contains(h) ? null : c.getParentHash();
+            p2 = Shallow.contains(h) ? null : c.getParentHash2();
+            if (p1 != null && !positions.containsKey(p1)) {
+                pending.add(p1);
+            } else if (p2 != null && !positions.containsKey(p2)) {
+                pending.add(p2);
+            } else {
+                pending.remove(pending.size() - 1);
+                append(h, p1, p2, c.getDate().getTime(), c.getTreeHash());
+            }
+        }
+        return positions.get(hash);
+    }
+
+    /** appends HASH with parents P1 and P2 (already present), time MILLIS
+     *  and tree TREE in memory */
+    private static void append(String hash, String p1, String p2, long millis, String tree) {
+        int i = ids.size();
+
+        if (i == parent1.length) {
+            parent1 = Arrays.copyOf(parent1, 2 * i);
+            parent2 = Arrays.copyOf(parent2, 2 * i);
+            generation = Arrays.copyOf(generation, 2 * i);
+            time = Arrays.copyOf(time, 2 * i);
+            trees = Arrays.copyOf(trees, 2 * i * ID_LENGTH);
+        }
+        ids.add(hash);
+        positions.put(hash, i);
+        parent1[i] = p1 == null ? -1 : positions.get(p1);
+        parent2[i] = p2 == null ? -1 : positions.get(p2);
+        generation[i] = 1 + Math.max(parent1[i] < 0 ? 0 : generation[parent1[i]],
+                parent2[i] < 0 ? 0 : generation[parent2[i]]);
+        time[i] = millis;
+        System.arraycopy(hexToBytes(tree), 0, trees, i * ID_LENGTH, ID_LENGTH);
+    }
+
+    private static void writeRecord(DataOutputStream out, int i) throws IOException {
+        out.write(hexToBytes(ids.get(i)));
+        out.writeInt(parent1[i]);
+        out.writeInt(parent2[i]);
+        out.writeInt(generation[i]);
+        out.writeLong(time[i]);
+        out.write(trees, i * ID_LENGTH, ID_LENGTH);
+    }
+
+    /**
+     * records the new commit HASH whose parents are P1 and P2 (either may be
+     * null), made at MILLIS with the tree TREE; the parents must already be
+     * in the graph
+     */
+    public static void add(String hash, String p1, String p2, long millis, String tree) {
+        IndexLock.run(() -> {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD);
+            ByteBuffer buf;
+            long end;
+
+            // the record goes after those other commands appended meanwhile
+            refresh(false);
+            load();
+            if (positions.containsKey(hash)) {
+                return;
+            }
+            append(hash, p1, p2, millis, tree);
+            end = HEADER + (long) (ids.size() - 1) * RECORD;
+            try (FileChannel channel = FileChannel.open(GRAPH_FILE.toPath(),
+                    StandardOpenOption.WRITE)) {
+                writeRecord(new DataOutputStream(record), ids.size() - 1);
+                buf = ByteBuffer.wrap(record.toByteArray());
+                // over whatever a command that died left half written
+                channel.truncate(end);
+                while (buf.hasRemaining()) {
+                    channel.write(buf, end + buf.position());
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            readStamp = stamp(GRAPH_FILE);
+        });
+    }
+
+    /** returns the number of commits in the graph */
+    static synchronized int size() {
+        load();
+        return ids.size();
+    }
+
+    /** returns the position of the commit HASH in graph order, or -1 if it
+     *  is not in the graph */
+    static int position(String hash) {
+        Integer i;
+
+        load();
+        i = positions.get(hash);
+        return i == null ? -1 : i;
+    }
+
+    /** returns the id of the commit at position I */
+    static String id(int i) {
+        return ids.get(i);
+    }
+
+    /** returns the position of the first parent of the commit at position
+     *  I, or -1 for a root commit */
+    static int firstParent(int i) {
+        return parent1[i];
+    }
+
+    /** returns the position of the second parent of the commit at position
+     *  I, or -1 if it is not a merge */
+    static int secondParent(int i) {
+        return parent2[i];
+    }
+
+    /** returns the generation number of the commit at position I */
+    static int generation(int i) {
+        return generation[i];
+    }
+
+    /** returns the time of the commit at position I, in milliseconds */
+    static long time(int i) {
+        return time[i];
+    }
+
+    /** returns the root tree id of the commit at position I */
+    static String tree(int i) {
+        return bytesToHex(trees, i * ID_LENGTH, ID_LENGTH);
+    }
+
+    /**
+     * returns a latest common ancestor of the commits HASH1 and HASH2, or
+     * null if they have none; only the graph is consulted
+     *
+     * Both commits paint their ancestors, highest generation first.  Since an
+     * ancestor always has a smaller generation than its descendants, every
+     * commit has been painted by all of its descendants by the time it is
+     * visited, so the first commit found painted from both sides cannot be
+     * below another common ancestor and the walk stops right there, without
+     * looking at the rest of the history.
+     */
+    public static String mergeBase(String hash1, String hash2) {
+        HashMap<Integer, Integer> flags = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (a, b) -> generation[b] != generation[a]
+                        ? generation[b] - generation[a] : b - a);
+        int one, two, c, f;
+        Integer old;
+
+        load();
+        one = positions.get(hash1);
+        two = positions.get(hash2);
+        flags.merge(one, FROM_ONE, (a, b) -> a | b);
+        flags.merge(two, FROM_TWO, (a, b) -> a | b);
+        queue.add(one);
+        queue.add(two);
+
+        while (!queue.isEmpty()) {
+            c = queue.poll();
+            f = flags.get(c);
+            if (f == (FROM_ONE | FROM_TWO)) {
+                return ids.get(c);
+            }
+            for (int p : new int[] {parent1[c], parent2[c]}) {
+                if (p < 0) {
+                    continue;
+                }
+                old = flags.get(p);
+                if (old == null || (old | f) != old) {
+                    flags.put(p, old == null ? f : old | f);
+                    queue.add(p);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * returns the positions of the commits reachable from those at
+     * INCLUDE but not from those at EXCLUDE, parents first, as git rev-list
+     * INCLUDE ^EXCLUDE lists them
+     *
+     * The commits are painted from both ends, highest generation first, as
+     * in mergeBase, so a commit is only visited once all its descendants
+     * were; the walk ends as soon as everything left to visit is excluded.
+     */
+    static List<Integer> range(Collection<Integer> include, Collection<Integer> exclude) {
+        HashMap<Integer, Integer> flags = new HashMap<>(), visited = new HashMap<>();
+        PriorityQueue<int[]> queue = new PriorityQueue<>(
+                (a, b) -> generation[b[0]] != generation[a[0]]
+                        ? generation[b[0]] - generation[a[0]] : b[0] - a[0]);
+        List<Integer> result = new ArrayList<>();
+        int[] live = new int[1];
+        int[] entry;
+        int c, f;
+
+        load();
+        for (int i : include) {
+            paint(i, FROM_ONE, flags, queue, live);
+        }
+        for (int e : exclude) {
+            paint(e, FROM_TWO, flags, queue, live);
+        }
+        while (live[0] > 0) {
+            entry = queue.poll();
+            if ((entry[1] & FROM_TWO) == 0) {
+                live[0] -= 1;
+            }
+            c = entry[0];
+            f = flags.get(c);
+            if (Objects.equals(visited.put(c, f), f)) {
+                continue;
+            }
+            if (f == FROM_ONE) {
+                result.add(c);
+            }
+            for (int p : new int[] {parent1[c], parent2[c]}) {
+                if (p >= 0) {
+                    paint(p, f, flags, queue, live);
+                }
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** adds the flags F to the commit at position P, queueing it again if
+     *  that changed anything; LIVE counts the queued commits not excluded */
+    private static void paint(int p, int f, HashMap<Integer, Integer> flags,
+                              PriorityQueue<int[]> queue, int[] live) {
+        int old = flags.getOrDefault(p, 0);
+
+        if ((old | f) != old) {
+            flags.put(p, old | f);
+            queue.add(new int[] {p, old | f});
+            if (((old | f) & FROM_TWO) == 0) {
+                live[0] += 1;
+            }
+        }
+    }
+
+}
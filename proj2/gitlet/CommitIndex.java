@@ -0,0 +1,324 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+
+import static gitlet.Utils.*;
+
+/** Represents the sorted index of all commit ids, used to resolve
+ *  abbreviated ids without listing the object store.
+ *
+ *  .gitlet/commit-index holds "CIDX", a version, the number of sorted
+ *  commits, a 256-entry fanout table (entry i counts the sorted ids whose
+ *  first byte is at most i) and the sorted 20-byte ids, then the ids of
+ *  the commits made since, unsorted.  Resolving a prefix is a binary
+ *  search inside the fanout range of its first byte, on the mapped file,
+ *  and a scan of the few unsorted ids.  A new commit is appended, which
+ *  costs the same however many commits there are; once MAX_UNSORTED ids
+ *  are unsorted, or on repack, they are folded into the sorted ones.  A
+ *  repository without the file gets it rebuilt the first time it is
+ *  needed.
+ *  @author Hoho
+ */
+public class CommitIndex {
+
+    /** version of the file format */
+    private static final int VERSION = 1;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** size of the header: magic, version, count and fanout */
+    private static final int HEADER = 12 + 256 * 4;
+
+    /** unsorted ids past which they are folded into the sorted ones */
+    private static final int MAX_UNSORTED = 256;
+
+    /** the index file */
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "commit-index");
+
+    /** the mapped index, loaded on first use */
+    private static ByteBuffer index;
+
+    /** stamp of the index file when mapped */
+    private static Object readStamp;
+
+    private static synchronized void load() {
+        List<String> ids;
+        ByteBuffer buf;
+
+        if (index == null) {
+            if (!INDEX_FILE.isFile()) {
+                ids = new ArrayList<>(ObjectStore.list(ObjectStore.COMMIT));
+                Collections.sort(ids);
+                buf = ByteBuffer.allocate(ids.size() * ID_LENGTH);
+                for (String id : ids) {
+                    buf.put(hexToBytes(id));
+                }
+                write(buf.array());
+            }
+            readStamp = stamp(INDEX_FILE);
+            index = mapContents(INDEX_FILE);
+        }
+    }
+
+    /** forgets the mapped index if DISCARD is set or the file changed since */
+    static synchronized void refresh(boolean discard) {
+        if (index != null && (discard || !Objects.equals(readStamp, stamp(INDEX_FILE)))) {
+            index = null;
+        }
+    }
+
+    /** the number of sorted ids */
+    private static int count() {
+        return index.getInt(8);
+    }
+
+    /** the number of ids, the unsorted ones after the sorted ones; an id
+     *  half written by a command that died is left out */
+    private static int total() {
+        return (index.limit() - HEADER) / ID_LENGTH;
+    }
+
+    /** writes a new index holding the sorted raw ids IDS, replacing the
+     *  old one */
+    private static void write(byte[] ids) {
+        IndexLock.run(() -> writeLocked(ids));
+    }
+
+    private static void writeLocked(byte[] ids) {
+        File tmp = join(Repository.GITLET_DIR, "commit-index.tmp");
+        int[] fanout = new int[256];
+        int n = ids.length / ID_LENGTH;
+
+        for (int i = 0; i < n; i += 1) {
+            fanout[ids[i * ID_LENGTH] & 0xff] += 1;
+        }
+        for (int i = 1; i < 256; i += 1) {
+            fanout[i] += fanout[i - 1];
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeBytes("CIDX");
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            for (int f : fanout) {
+                out.writeInt(f);
+            }
+            out.write(ids);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        PackFile.move(tmp, INDEX_FILE);
+        index = null;
+    }
+
+    /** returns every commit id in the repository, sorted */
+    public static List<String> all() {
+        List<String> result;
+
+        load();
+        result = new ArrayList<>(total());
+        for (int i = 0; i < total(); i += 1) {
+            result.add(idAt(i));
+        }
+        if (total() > count()) {
+            // the sorted ids stay in order, which the sort takes advantage of
+            Collections.sort(result);
+        }
+        return result;
+    }
+
+    /** records the commits HASHES, received from another repository */
+    public static void addAll(Collection<String> hashes) {
+        IndexLock.run(() -> {
+            // appended after the ids other commands added meanwhile
+            refresh(false);
+            load();
+            LinkedHashSet<String> added = new LinkedHashSet<>();
+            for (String hash : hashes) {
+                if (!contains(hexToBytes(hash))) {
+                    added.add(hash);
+                }
+            }
+            append(added);
+        });
+    }
+
+    /** records the new commit HASH */
+    public static void add(String hash) {
+        addAll(Collections.singletonList(hash));
+    }
+
+    /** folds the unsorted ids into the sorted ones */
+    static void compact() {
+        IndexLock.run(() -> {
+            refresh(false);
+            load();
+            if (total() > count()) {
+                fold();
+            }
+        });
+    }
+
+    /** appends the ids HASHES, folding them in if too many are unsorted */
+    private static void append(Collection<String> hashes) {
+        ByteBuffer buf = ByteBuffer.allocate(hashes.size() * ID_LENGTH);
+        long end = HEADER + (long) total() * ID_LENGTH;
+
+        if (hashes.isEmpty()) {
+            return;
+        }
+        for (String hash : hashes) {
+            buf.put(hexToBytes(hash));
+        }
+        buf.flip();
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(),
+                StandardOpenOption.WRITE)) {
+            // over whatever a command that died left half written
+            channel.truncate(end);
+            while (buf.hasRemaining()) {
+                channel.write(buf, end + buf.position());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        index = null;
+        load();
+        if (total() - count() > MAX_UNSORTED) {
+            fold();
+        }
+    }
+
+    /** rewrites the index with the unsorted ids merged into the sorted
+     *  ones, copying the raw ids */
+    private static void fold() {
+        List<byte[]> unsorted = new ArrayList<>();
+        byte[] ids = new byte[total() * ID_LENGTH];
+        int n = count(), i = 0, j = 0, k = 0;
+
+        for (int pos = n; pos < total(); pos += 1) {
+            unsorted.add(rawIdAt(pos));
+        }
+        unsorted.sort(Arrays::compareUnsigned);
+        while (i < n || j < unsorted.size()) {
+            if (j == unsorted.size() || (i < n && compareId(i, unsorted.get(j)) < 0)) {
+                index.get(HEADER + i * ID_LENGTH, ids, k, ID_LENGTH);
+                i += 1;
+            } else {
+                System.arraycopy(unsorted.get(j), 0, ids, k, ID_LENGTH);
+                j += 1;
+            }
+            k += ID_LENGTH;
+        }
+        write(ids);
+    }
+
+    /** returns whether the raw id ID is in the index */
+    private static boolean contains(byte[] id) {
+        int pos = lowerBound(id);
+
+        if (pos < count() && compareId(pos, id) == 0) {
+            return true;
+        }
+        for (pos = count(); pos < total(); pos += 1) {
+            if (compareId(pos, id) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * returns the full id of the only commit whose id starts with PREFIX,
+     * or null if there is none; aborts if more than one commit matches
+     */
+    public static String resolve(String prefix) {
+        String result = null, id;
+        int pos;
+
+        prefix = prefix.toLowerCase();
+        if (prefix.isEmpty() || prefix.length() > UID_LENGTH
+                || !prefix.matches("[0-9a-f]*")) {
+            return null;
+        }
+        load();
+        pos = lowerBound(hexToBytes(pad(prefix, '0')));
+        if (pos < count() && idAt(pos).startsWith(prefix)) {
+            result = idAt(pos);
+            if (pos + 1 < count() && idAt(pos + 1).startsWith(prefix)) {
+                eventMessageHandler("Commit id " + prefix + " is ambiguous.", true);
+            }
+        }
+        for (pos = count(); pos < total(); pos += 1) {
+            id = idAt(pos);
+            if (id.startsWith(prefix)) {
+                if (result != null && !result.equals(id)) {
+                    eventMessageHandler("Commit id " + prefix + " is ambiguous.", true);
+                }
+                result = id;
+            }
+        }
+        return result;
+    }
+    private static String pad(String prefix, char c) {
+        StringBuilder sb = new StringBuilder(prefix);
+        while (sb.length() < UID_LENGTH) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** returns the position of the first id not less than ID */
+    private static int lowerBound(byte[] id) {
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : index.getInt(12 + (first - 1) * 4);
+        int hi = index.getInt(12 + first * 4);
+        int mid;
+
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (compareId(mid, id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int compareId(int pos, byte[] id) {
+        int base = HEADER + pos * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = (index.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static String idAt(int pos) {
+        return bytesToHex(rawIdAt(pos), 0, ID_LENGTH);
+    }
+
+    private static byte[] rawIdAt(int pos) {
+        byte[] id = new byte[ID_LENGTH];
+        index.get(HEADER + pos * ID_LENGTH, id);
+        return id;
+    }
+
+}
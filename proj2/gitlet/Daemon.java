@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static gitlet.Utils.*;
+
+/** Represents the daemon, which serves the commands of one repository from
+ *  a single warm process: gitlet serve.
+ *
+ *  The daemon listens on a local TCP port and writes the port and a random
+ *  token to .gitlet/daemon, readable by its owner only; a client (see
+ *  Client) proves it may use the repository by sending the token, then
+ *  the command as its number of arguments followed by each argument, and
+ *  reads the output of the command until the connection closes.
+ *
+ *  The state, indexes and objects read by a command stay in memory for
+ *  the next one.  Before every command, whatever was read from a file
+ *  another process has changed since is forgotten (Repository.refresh),
+ *  and after a command that failed half way, everything is.  Commands
+ *  that change the repository run one at a time; log, global-log and find
+ *  only read it and run alongside each other.  Each command thread has
+ *  its own System.in and System.out, the connection of its client, which
+ *  is all upload-pack and receive-pack need to serve fetch and push (see
+ *  Remote).
+ *
+ *  "gitlet serve --stop" sent through a client stops the daemon once the
+ *  commands running are done.
+ *  @author Hoho
+ */
+public class Daemon {
+
+    /** the file holding the port and the token of the running daemon */
+    static final File DAEMON_FILE = join(Repository.GITLET_DIR, "daemon");
+
+    /** commands that only read the repository */
+    private static final Set<String> READS =
+            Set.of("log", "global-log", "find", "blame", "upload-pack",
+                   "upload-blobs");
+
+    /** bytes of the token */
+    private static final int TOKEN_LENGTH = 16;
+
+    /** connections waiting to be accepted */
+    private static final int BACKLOG = 64;
+
+    /** held for reading by read commands, for writing by every other one */
+    private static final ReentrantReadWriteLock LOCK = new ReentrantReadWriteLock();
+
+    /** the input and the output of the command run by each thread */
+    private static final ThreadLocal<InputStream> IN = new ThreadLocal<>();
+    private static final ThreadLocal<OutputStream> OUT = new ThreadLocal<>();
+
+    /** the token clients have to send */
+    private static String token;
+
+    /** the listening socket, closed to stop */
+    private static ServerSocket server;
+
+    /** serves commands until stopped */
+    static void serve() {
+        ExecutorService workers;
+        PrintStream console = System.out;
+        InputStream stdin = System.in;
+        byte[] secret = new byte[TOKEN_LENGTH];
+
+        try (Socket other = Client.connect(Repository.GITLET_DIR)) {
+            if (other != null) {
+                eventMessageHandler("A daemon is already serving this repository.", true);
+            }
+        } catch (IOException excp) {
+            // the other daemon went away meanwhile
+        }
+        new SecureRandom().nextBytes(secret);
+        token = bytesToHex(secret, 0, TOKEN_LENGTH);
+        try {
+            server = new ServerSocket(0, BACKLOG, InetAddress.getLoopbackAddress());
+            writeDaemonFile(server.getLocalPort() + "\n" + token + "\n");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        System.setOut(new PrintStream(new Dispatch(console), true));
+        System.setIn(new InputDispatch(stdin));
+        console.println("Serving on port " + server.getLocalPort() + ".");
+        workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "gitlet-command");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                workers.submit(() -> handle(socket));
+            }
+        } catch (IOException excp) {
+            // the socket was closed by stop()
+        } finally {
+            // the commands running finish before the daemon goes away
+            LOCK.writeLock().lock();
+            DAEMON_FILE.delete();
+            System.setOut(console);
+            System.setIn(stdin);
+            workers.shutdownNow();
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    /** writes CONTENTS to the daemon file, readable by its owner only */
+    private static void writeDaemonFile(String contents) throws IOException {
+        File tmp = join(Repository.GITLET_DIR, "daemon.tmp");
+
+        tmp.delete();
+        try {
+            Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException excp) {
+            Files.createFile(tmp.toPath());
+        }
+        writeContents(tmp, contents);
+        PackFile.move(tmp, DAEMON_FILE);
+    }
+
+    /** runs the command sent on SOCKET, writing its output back */
+    private static void handle(Socket socket) {
+        String[] args;
+
+        try (socket; OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (!in.readUTF().equals(token)) {
+                return;
+            }
+            args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i += 1) {
+                args[i] = in.readUTF();
+            }
+            IN.set(in);
+            OUT.set(out);
+            try {
+                execute(args);
+            } finally {
+                System.out.flush();
+                IN.remove();
+                OUT.remove();
+            }
+        } catch (IOException excp) {
+            // the client went away; nothing to answer
+        }
+    }
+
+    /** runs the command ARGS under the lock it needs */
+    private static void execute(String[] args) {
+        boolean read = args.length > 0 && READS.contains(args[0]);
+        boolean failed = false;
+
+        if (args.length > 0 && args[0].equals("serve")) {
+            if (args.length == 2 && args[1].equals("--stop")) {
+                stop();
+            } else {
+                System.out.println("A daemon is already serving this repository.");
+            }
+            return;
+        }
+
+        LOCK.writeLock().lock();
+        try {
+            Repository.refresh(false);
+            if (read) {
+                // downgrade: other reads may start, no write can
+                LOCK.readLock().lock();
+                LOCK.writeLock().unlock();
+            }
+            Main.run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            failed = true;
+        } catch (RuntimeException excp) {
+            System.out.println("Internal error: " + excp);
+            failed = true;
+        } finally {
+            if (LOCK.isWriteLockedByCurrentThread()) {
+                // what a failed command changed in memory was never recorded
+                if (failed) {
+                    Repository.refresh(true);
+                }
+                LOCK.writeLock().unlock();
+            } else {
+                LOCK.readLock().unlock();
+            }
+        }
+    }
+
+    private static void stop() {
+        System.out.println("Stopping.");
+        try {
+            server.close();
+        } catch (IOException excp) {
+            // closed already
+        }
+    }
+
+    /** Represents the System.out of the daemon, which passes everything on
+     *  to the output of the command of the current thread. */
+    private static class Dispatch extends OutputStream {
+        /** where threads running no command write */
+        private final OutputStream console;
+
+        Dispatch(OutputStream console) {
+            this.console = console;
+        }
+
+        private OutputStream target() {
+            OutputStream out = OUT.get();
+            return out == null ? console : out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    /** Represents the System.in of the daemon, which reads from the input
+     *  of the command of the current thread. */
+    private static class InputDispatch extends InputStream {
+        /** where threads running no command read */
+        private final InputStream console;
+
+        InputDispatch(InputStream console) {
+            this.console = console;
+        }
+
+        private InputStream source() {
+            InputStream in = IN.get();
+            return in == null ? console : in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return source().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return source().read(b, off, len);
+        }
+    }
+
+}
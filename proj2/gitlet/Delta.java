@@ -0,0 +1,222 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Represents the delta encoder of one base version of a file, which
+ *  describes other versions as instructions against it.
+ *
+ *  A delta is the length of the base and the length of the result, both
+ *  as varints, followed by instructions:
+ *      0x80, offset, length  -- copy length bytes of the base from offset
+ *      n (1 to 127), n bytes -- insert the n bytes that follow
+ *  Matches are found through a hash table of the aligned 16-byte blocks
+ *  of the base, probed with a rolling hash at every position of the
+ *  target, and extended in both directions once found.
+ *  @author Hoho
+ */
+class Delta {
+
+    /** Size of the blocks of the base that are indexed. */
+    private static final int BLOCK = 16;
+
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 0x01000193;
+
+    /** PRIME to the power BLOCK, to drop the byte leaving the window. */
+    private static final int PRIME_POW = pow(PRIME, BLOCK);
+
+    /** Candidates looked at for one position, bounding repetitive bases. */
+    private static final int MAX_CHAIN = 32;
+
+    /** Longest run of inserted bytes one instruction can carry. */
+    private static final int MAX_INSERT = 127;
+
+    /** Opcode of a copy instruction. */
+    private static final int COPY = 0x80;
+
+    /** The base version. */
+    private final byte[] base;
+    /** Hash table of block hashes, holding the latest block of each slot. */
+    private final int[] heads;
+    /** The previous block with the same slot, for every block. */
+    private final int[] next;
+    /** Mask selecting a slot from a hash. */
+    private final int mask;
+
+    /** Indexes BASE so that versions derived from it can be encoded. */
+    Delta(byte[] base) {
+        int blocks = base.length / BLOCK;
+        int slot;
+
+        this.base = base;
+        mask = Integer.highestOneBit(Math.max(2 * blocks, 16)) - 1;
+        heads = new int[mask + 1];
+        next = new int[blocks];
+        Arrays.fill(heads, -1);
+        for (int b = 0; b < blocks; b += 1) {
+            slot = slot(hash(base, b * BLOCK));
+            next[b] = heads[slot];
+            heads[slot] = b;
+        }
+    }
+
+    /** Returns the instructions that turn the base into TARGET. */
+    byte[] encode(byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 8 + 16);
+        int i = 0, pending = 0, h = 0;
+        int bestStart, bestLength, back, length, o, chain;
+
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        if (target.length >= BLOCK) {
+            h = hash(target, 0);
+        }
+        while (i + BLOCK <= target.length) {
+            bestStart = 0;
+            bestLength = 0;
+            back = 0;
+            chain = 0;
+            for (int b = heads[slot(h)]; b >= 0 && chain < MAX_CHAIN; b = next[b]) {
+                chain += 1;
+                o = b * BLOCK;
+                length = 0;
+                while (o + length < base.length && i + length < target.length
+                        && base[o + length] == target[i + length]) {
+                    length += 1;
+                }
+                if (length < BLOCK) {
+                    continue;
+                }
+                int k = 0;
+                while (o - k > 0 && i - k > pending && base[o - k - 1] == target[i - k - 1]) {
+                    k += 1;
+                }
+                if (length + k > bestLength) {
+                    bestStart = o - k;
+                    bestLength = length + k;
+                    back = k;
+                }
+            }
+            if (bestLength == 0) {
+                if (i + BLOCK < target.length) {
+                    h = h * PRIME - target[i] * PRIME_POW + target[i + BLOCK];
+                }
+                i += 1;
+                continue;
+            }
+            writeInsert(out, target, pending, i - back);
+            out.write(COPY);
+            writeVarint(out, bestStart);
+            writeVarint(out, bestLength);
+            i += bestLength - back;
+            pending = i;
+            if (i + BLOCK <= target.length) {
+                h = hash(target, i);
+            }
+        }
+        writeInsert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying the instructions DELTA to BASE.
+     *  Throws IllegalArgumentException if they do not fit BASE. */
+    static byte[] apply(byte[] base, ByteBuffer delta) {
+        byte[] result;
+        int pos = 0, op, offset, length;
+
+        delta = delta.duplicate();
+        if (readVarint(delta) != base.length) {
+            throw new IllegalArgumentException("delta does not match its base");
+        }
+        result = new byte[readVarint(delta)];
+        while (delta.hasRemaining()) {
+            op = delta.get() & 0xff;
+            if (op == COPY) {
+                offset = readVarint(delta);
+                length = readVarint(delta);
+                if (offset < 0 || length > base.length - offset
+                        || length > result.length - pos) {
+                    throw new IllegalArgumentException("corrupt delta");
+                }
+                System.arraycopy(base, offset, result, pos, length);
+            } else {
+                length = op;
+                if (length == 0 || length > result.length - pos
+                        || length > delta.remaining()) {
+                    throw new IllegalArgumentException("corrupt delta");
+                }
+                delta.get(result, pos, length);
+            }
+            pos += length;
+        }
+        if (pos != result.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return result;
+    }
+
+    /** Returns the length of the result of the instructions DELTA. */
+    static int resultLength(ByteBuffer delta) {
+        delta = delta.duplicate();
+        readVarint(delta);
+        return readVarint(delta);
+    }
+
+    private int slot(int h) {
+        return (h * 0x9E3779B1) >>> 7 & mask;
+    }
+
+    /** Returns the rolling hash of the BLOCK bytes of DATA from START. */
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            h = h * PRIME + data[start + k];
+        }
+        return h;
+    }
+
+    private static int pow(int x, int n) {
+        int result = 1;
+        for (int k = 0; k < n; k += 1) {
+            result *= x;
+        }
+        return result;
+    }
+
+    /** Writes the bytes of DATA from START to END as insert instructions. */
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int start, int end) {
+        int n;
+
+        while (start < end) {
+            n = Math.min(MAX_INSERT, end - start);
+            out.write(n);
+            out.write(data, start, n);
+            start += n;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer buf) {
+        int value = 0, shift = 0, b;
+
+        do {
+            if (!buf.hasRemaining() || shift > 28) {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+            b = buf.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
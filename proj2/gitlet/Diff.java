@@ -0,0 +1,246 @@
+package gitlet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** Represents the line diff used by merge, which matches the lines two
+ *  versions of a file have in common.
+ *
+ *  Lines are never turned into Strings: a text is split into the offsets
+ *  of its lines, and every distinct line is given an id through a hash
+ *  table over the raw bytes, so the diff itself only compares ints.  The
+ *  diff is Myers' O(ND) algorithm in its linear space form: the middle
+ *  snake of the edit graph is found by searching from both ends at once,
+ *  and both halves are diffed recursively.  As in git, a search costing
+ *  more than the cost limit settles for the furthest reaching path, which
+ *  bounds the time spent on heavily rewritten files.
+ *  @author Hoho
+ */
+class Diff {
+
+    /** Cost limit of one search, however small the texts. */
+    private static final int MIN_COST = 256;
+
+    /** Texts looked at for binary contents, as git does. */
+    private static final int BINARY_PROBE = 8000;
+
+    /** Returns the offsets at which the lines of TEXT start, followed by
+     *  the end of TEXT; every line but the last ends with its newline. */
+    static int[] lineStarts(ByteBuffer text) {
+        int[] starts = new int[64];
+        int n = 0, end = text.limit();
+
+        for (int i = text.position(); i < end; i += 1) {
+            if (i == text.position() || text.get(i - 1) == '\n') {
+                if (n == starts.length - 1) {
+                    starts = Arrays.copyOf(starts, 2 * starts.length);
+                }
+                starts[n++] = i;
+            }
+        }
+        starts[n++] = end;
+        return Arrays.copyOf(starts, n);
+    }
+
+    /** Returns true if TEXT looks binary, that is holds a NUL byte early on. */
+    static boolean isBinary(ByteBuffer text) {
+        int end = Math.min(text.limit(), text.position() + BINARY_PROBE);
+
+        for (int i = text.position(); i < end; i += 1) {
+            if (text.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the ids of the lines of every one of TEXTS, split at STARTS:
+     *  two lines have the same id exactly when their bytes are equal. */
+    static int[][] lineIds(ByteBuffer[] texts, int[][] starts) {
+        int[][] ids = new int[texts.length][];
+        int total = 0, count = 0, h, slot;
+        int[] table, ownerText, ownerLine, hashes;
+
+        for (int[] s : starts) {
+            total += s.length - 1;
+        }
+        table = new int[Integer.highestOneBit(Math.max(2 * total, 8)) * 2];
+        ownerText = new int[total];
+        ownerLine = new int[total];
+        hashes = new int[total];
+        for (int t = 0; t < texts.length; t += 1) {
+            ids[t] = new int[starts[t].length - 1];
+            for (int l = 0; l < ids[t].length; l += 1) {
+                h = hash(texts[t], starts[t][l], starts[t][l + 1]);
+                slot = h & (table.length - 1);
+                // slots hold id + 1, so that 0 means empty
+                while (table[slot] != 0) {
+                    int id = table[slot] - 1;
+                    if (hashes[id] == h && equal(texts[t], starts[t][l], starts[t][l + 1],
+                            texts[ownerText[id]], starts[ownerText[id]][ownerLine[id]],
+                            starts[ownerText[id]][ownerLine[id] + 1])) {
+                        break;
+                    }
+                    slot = (slot + 1) & (table.length - 1);
+                }
+                if (table[slot] == 0) {
+                    ownerText[count] = t;
+                    ownerLine[count] = l;
+                    hashes[count] = h;
+                    table[slot] = ++count;
+                }
+                ids[t][l] = table[slot] - 1;
+            }
+        }
+        return ids;
+    }
+
+    /** Returns, for every element of A, the index of the element of B it is
+     *  matched with in a shortest edit script from A to B, or -1. */
+    static int[] match(int[] a, int[] b) {
+        int[] matches = new int[a.length];
+
+        Arrays.fill(matches, -1);
+        diff(a, 0, a.length, b, 0, b.length, matches);
+        return matches;
+    }
+
+    /** Matches A[aLo..aHi) against B[bLo..bHi) into MATCHES. */
+    private static void diff(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                             int[] matches) {
+        int[] split;
+
+        // the second half is diffed by the loop rather than a recursive call
+        while (true) {
+            // the common prefix and suffix are matched without searching
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                matches[aLo++] = bLo++;
+            }
+            while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                matches[--aHi] = --bHi;
+            }
+            if (aLo == aHi || bLo == bHi) {
+                return;
+            }
+            split = middleSnake(a, aLo, aHi, b, bLo, bHi);
+            if (split == null) {
+                return;
+            }
+            diff(a, aLo, aLo + split[0], b, bLo, bLo + split[1], matches);
+            aLo += split[0];
+            bLo += split[1];
+        }
+    }
+
+    /** Returns a point, relative to (aLo, bLo), on a shortest path through
+     *  the edit graph of A[aLo..aHi) and B[bLo..bHi), or null if the two
+     *  have nothing in common.  Both are non-empty and differ at each end. */
+    private static int[] middleSnake(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        int n = aHi - aLo, m = bHi - bLo, delta = n - m;
+        int maxD = (n + m + 1) / 2, offset = maxD + 1;
+        int limit = Math.max(MIN_COST, (int) Math.sqrt(n + m));
+        int[] forward = new int[2 * maxD + 3], backward = new int[2 * maxD + 3];
+        boolean odd = (delta & 1) != 0;
+        int fStart = 0, fEnd = 0, bStart = 0, bEnd = 0;
+        int x, y, other;
+
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            if (d > limit) {
+                return furthest(forward, offset, d, fStart, fEnd, n, m);
+            }
+            for (int k = -d + fStart; k <= d - fEnd; k += 2) {
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                if (x > n) {
+                    fEnd += 2;
+                } else if (y > m) {
+                    fStart += 2;
+                } else if (odd) {
+                    other = offset + delta - k;
+                    if (other >= 0 && other < backward.length && backward[other] != -1
+                            && x >= n - backward[other]) {
+                        return new int[] {x, y};
+                    }
+                }
+            }
+            for (int k = -d + bStart; k <= d - bEnd; k += 2) {
+                if (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
+                }
+                y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[offset + k] = x;
+                if (x > n) {
+                    bEnd += 2;
+                } else if (y > m) {
+                    bStart += 2;
+                } else if (!odd) {
+                    other = offset + delta - k;
+                    if (other >= 0 && other < forward.length && forward[other] != -1
+                            && forward[other] >= n - x) {
+                        return new int[] {forward[other], forward[other] - (other - offset)};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns the end of the forward path of cost D reaching furthest
+     *  towards the end of both texts. */
+    private static int[] furthest(int[] forward, int offset, int d,
+                                  int fStart, int fEnd, int n, int m) {
+        int[] best = null;
+        int x, y;
+
+        for (int k = -(d - 1) + fStart; k <= d - 1 - fEnd; k += 2) {
+            x = forward[offset + k];
+            y = x - k;
+            if (x >= 0 && x <= n && y >= 0 && y <= m && x + y > 0 && x + y < n + m
+                    && (best == null || x + y > best[0] + best[1])) {
+                best = new int[] {x, y};
+            }
+        }
+        return best;
+    }
+
+    private static int hash(ByteBuffer text, int start, int end) {
+        int h = 0x811c9dc5;
+        for (int i = start; i < end; i += 1) {
+            h = (h ^ text.get(i)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(ByteBuffer a, int aStart, int aEnd,
+                                 ByteBuffer b, int bStart, int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = 0; i < aEnd - aStart; i += 1) {
+            if (a.get(aStart + i) != b.get(bStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
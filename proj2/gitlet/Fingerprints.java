@@ -0,0 +1,198 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** Represents the fingerprints of blob contents used to find renamed
+ *  files, and the cache keeping them.
+ *
+ *  A fingerprint is the MinHash signature of the chunks of a blob: the
+ *  contents are cut after every newline or every CHUNK bytes, whichever
+ *  comes first (so binary files have chunks too), and for each of SIZE
+ *  hash functions the signature keeps the least hash of any chunk.  Two
+ *  signatures agree in a fraction of their slots that estimates the
+ *  Jaccard similarity of the two sets of chunks.
+ *
+ *  A blob never changes, so its fingerprint is computed once:
+ *  .gitlet/fingerprints holds "FPRT" and a version, followed by one record
+ *  per blob, appended when first computed: the 20-byte blob id and the
+ *  SIZE ints of the signature.
+ *  @author Hoho
+ */
+public class Fingerprints {
+
+    /** version of the file format */
+    private static final int VERSION = 1;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** size of the header: magic and version */
+    private static final int HEADER = 8;
+
+    /** number of hash functions, that is ints in a signature */
+    static final int SIZE = 60;
+
+    /** longest chunk, for contents without newlines */
+    private static final int CHUNK = 64;
+
+    /** the seeds of the hash functions */
+    private static final int[] SEEDS = new int[SIZE];
+
+    static {
+        int s = 0x9E3779B9;
+        for (int k = 0; k < SIZE; k += 1) {
+            s = mix(s + 0x6D2B79F5);
+            SEEDS[k] = s;
+        }
+    }
+
+    /** the cache file */
+    static final File CACHE_FILE = join(Repository.GITLET_DIR, "fingerprints");
+
+    /** the cached signatures, read on first use */
+    private static Map<String, int[]> cache;
+
+    /** signatures computed by this command, to append to the cache file */
+    private static Map<String, int[]> added = new HashMap<>();
+
+    /** returns the signature of the blob HASH, computing it if not cached */
+    public static int[] of(String hash) {
+        int[] signature;
+        Blob b;
+
+        load();
+        signature = cache.get(hash);
+        if (signature == null) {
+            b = Blob.getBlobFromHash(hash);
+            if (b == null) {
+                throw new IllegalArgumentException("missing blob " + hash);
+            }
+            signature = compute(b.getBytes());
+            cache.put(hash, signature);
+            added.put(hash, signature);
+        }
+        return signature;
+    }
+
+    /** returns the fraction of the slots of A and B that agree */
+    public static double similarity(int[] a, int[] b) {
+        int same = 0;
+
+        for (int i = 0; i < SIZE; i += 1) {
+            if (a[i] == b[i]) {
+                same += 1;
+            }
+        }
+        return (double) same / SIZE;
+    }
+
+    /** returns the signature of DATA; empty contents get all slots at
+     *  Integer.MAX_VALUE */
+    static int[] compute(ByteBuffer data) {
+        int[] signature = new int[SIZE];
+        int start = data.position(), h = 0x811c9dc5, x;
+        byte c;
+
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int i = data.position(); i < data.limit(); i += 1) {
+            c = data.get(i);
+            h = (h ^ c) * 0x01000193;
+            if (c == '\n' || i - start + 1 == CHUNK || i == data.limit() - 1) {
+                // the k-th hash function is the chunk hash mixed with a seed
+                for (int k = 0; k < SIZE; k += 1) {
+                    x = mix(h ^ SEEDS[k]);
+                    if (x < signature[k]) {
+                        signature[k] = x;
+                    }
+                }
+                start = i + 1;
+                h = 0x811c9dc5;
+            }
+        }
+        return signature;
+    }
+
+    /** the finalizer of MurmurHash3, a cheap mix of all bits of X */
+    private static int mix(int x) {
+        x ^= x >>> 16;
+        x *= 0x85ebca6b;
+        x ^= x >>> 13;
+        x *= 0xc2b2ae35;
+        x ^= x >>> 16;
+        return x & Integer.MAX_VALUE;
+    }
+
+    /** appends the signatures computed by this command to the cache file */
+    public static void save() {
+        if (added.isEmpty()) {
+            return;
+        }
+        IndexLock.run(Fingerprints::append);
+    }
+
+    private static void append() {
+        boolean fresh;
+
+        fresh = !CACHE_FILE.isFile();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(CACHE_FILE, true)))) {
+            if (fresh) {
+                out.writeBytes("FPRT");
+                out.writeInt(VERSION);
+            }
+            for (Map.Entry<String, int[]> entry : added.entrySet()) {
+                out.write(hexToBytes(entry.getKey()));
+                for (int v : entry.getValue()) {
+                    out.writeInt(v);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        added.clear();
+    }
+
+    private static void load() {
+        byte[] id = new byte[ID_LENGTH];
+        ByteBuffer buf;
+        int[] signature;
+
+        if (cache != null) {
+            return;
+        }
+        cache = new HashMap<>();
+        if (!CACHE_FILE.isFile()) {
+            return;
+        }
+        buf = mapContents(CACHE_FILE);
+        if (buf.limit() < HEADER || buf.getInt(4) != VERSION) {
+            CACHE_FILE.delete();
+            return;
+        }
+        buf.position(HEADER);
+        while (buf.remaining() >= ID_LENGTH + 4 * SIZE) {
+            buf.get(id);
+            signature = new int[SIZE];
+            buf.asIntBuffer().get(signature);
+            buf.position(buf.position() + 4 * SIZE);
+            cache.put(bytesToHex(id, 0, ID_LENGTH), signature);
+        }
+        // a record cut short by a crash would misalign the next ones: the
+        // file is written again from scratch
+        if (buf.hasRemaining()) {
+            CACHE_FILE.delete();
+            added.putAll(cache);
+        }
+    }
+
+}
@@ -0,0 +1,416 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static gitlet.Utils.*;
+
+/** Represents the garbage collector, which removes the objects no branch
+ *  and no staged file can reach any more.
+ *
+ *  Collection is mark and sweep.  Marking starts from the roots (every
+ *  branch, the head and the blobs in the staging area) and follows commits
+ *  to their parents and trees, trees to their entries, and chunked blobs
+ *  to their chunks.  Sweeping then deletes the loose objects left
+ *  unmarked.
+ *
+ *  commit runs the collector in slices of at most SLICE, one cycle every
+ *  INTERVAL commits, so no single command waits for a whole collection.
+ *  Between cycles nothing is written: a cycle starts once the commit-graph
+ *  holds INTERVAL commits more than when the last one ended.  During a
+ *  cycle the progress is kept between commands in .gitlet/gc, which holds
+ *  the phase and how far marking and sweeping went, and .gitlet/gc-log,
+ *  which lists the objects marked (type and 20-byte id) in the order they
+ *  were marked.  References are followed in that order too, so the objects
+ *  still to follow are the end of the log; a slice only appends the
+ *  objects it marked and rewrites the few bytes of .gitlet/gc, which also
+ *  says how much of the log is valid.  Since the roots can change between
+ *  two slices, they are marked again at the start of every slice (the
+ *  write barrier): an object reachable again, say by a reset to an old
+ *  commit, is marked before anything else is swept.
+ *  Objects written after the cycle started are never swept.  Slices only
+ *  sweep loose objects older than EXPIRY, leaving time to reach a commit
+ *  by its id; the gc command runs a whole cycle at once, without the
+ *  grace period, and also rewrites the packs without the dead objects.
+ *  Both run holding the repository lock (see IndexLock), so no other
+ *  command records new roots or indexes while objects go away; the only
+ *  command writing objects it has not recorded yet, add, holds the lock
+ *  from writing its blob to staging it, so even without the grace period
+ *  gc never takes that blob for garbage.
+ *  @author Hoho
+ */
+public class GarbageCollector {
+
+    /** version of the file format */
+    private static final int VERSION = 2;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** length of a record of the log: type and id */
+    private static final int RECORD = 1 + ID_LENGTH;
+
+    /** the file keeping a cycle in progress */
+    static final File STATE_FILE = join(Repository.GITLET_DIR, "gc");
+
+    /** the objects marked in the cycle in progress */
+    static final File LOG_FILE = join(Repository.GITLET_DIR, "gc-log");
+
+    /* phases of a cycle */
+    private static final byte IDLE = 0;
+    private static final byte MARK = 1;
+    private static final byte SWEEP = 2;
+
+    /** commits between the end of a cycle and the start of the next */
+    private static final int INTERVAL = 50;
+
+    /** time one slice may take, in nanoseconds */
+    private static final long SLICE = 20_000_000L;
+
+    /** age a loose object needs before a slice sweeps it, in milliseconds */
+    private static final long EXPIRY = 14L * 24 * 60 * 60 * 1000;
+
+    /** objects looked at between two checks of the clock */
+    private static final int CHECK_EVERY = 64;
+
+    /** phase of the current cycle */
+    private static byte phase;
+    /** commits in the commit-graph when the last cycle ended, or -1 if to
+     *  be counted on the next commit */
+    private static int baseline;
+    /** when the current cycle started, in milliseconds */
+    private static long started;
+    /** ids of the objects found reachable */
+    private static HashSet<String> marked;
+    /** the objects found reachable, in the order they were marked */
+    private static List<Ref> log;
+    /** objects of log whose references were followed, the first ones */
+    private static int scanned;
+    /** objects of log already in the log file, the first ones */
+    private static int logged;
+    /** index in ObjectStore.TYPES of the type being swept */
+    private static int sweepType;
+    /** the last loose object swept of that type */
+    private static String sweepAfter;
+    /** whether the cycle deleted a commit (or, for collect, any object) */
+    private static boolean commitsSwept;
+    /** stamp of the state file as read or last written */
+    private static Object readStamp;
+
+    /** an object known by its type and id */
+    private static class Ref {
+        private final byte type;
+        private final String hash;
+
+        Ref(byte type, String hash) {
+            this.type = type;
+            this.hash = hash;
+        }
+    }
+
+    /** runs one slice of collection, called after every commit */
+    public static void step() {
+        IndexLock.run(GarbageCollector::stepLocked);
+    }
+
+    private static void stepLocked() {
+        load();
+        if (phase == IDLE) {
+            // the commit just made counts
+            if (baseline < 0) {
+                baseline = CommitGraph.size() - 1;
+                save();
+            }
+            if (CommitGraph.size() - baseline < INTERVAL) {
+                return;
+            }
+            start();
+        }
+        run(System.nanoTime() + SLICE, EXPIRY);
+        save();
+    }
+
+    /**
+     * collects everything unreachable at once: marks from the roots, then
+     * rewrites the packs and the loose objects into a single pack holding
+     * only the marked objects
+     */
+    public static void collect() {
+        IndexLock.run(GarbageCollector::collectLocked);
+    }
+
+    private static void collectLocked() {
+        // the roots other commands recorded count too
+        State.refresh(false);
+        load();
+        start();
+        mark(Long.MAX_VALUE);
+        commitsSwept = ObjectStore.repack(marked) > 0;
+        finish();
+        save();
+    }
+
+    private static void start() {
+        phase = MARK;
+        started = System.currentTimeMillis();
+        marked = new HashSet<>();
+        log = new ArrayList<>();
+        scanned = 0;
+        logged = 0;
+        sweepType = 0;
+        sweepAfter = "";
+        commitsSwept = false;
+    }
+
+    /** works on the current cycle until DEADLINE (System.nanoTime), only
+     *  sweeping objects older than GRACE */
+    private static void run(long deadline, long grace) {
+        if (!mark(deadline)) {
+            return;
+        }
+        phase = SWEEP;
+        do {
+            if (sweep(ObjectStore.TYPES[sweepType], deadline, started - grace)) {
+                sweepType += 1;
+                sweepAfter = "";
+            }
+            if (sweepType == ObjectStore.TYPES.length) {
+                finish();
+                return;
+            }
+        } while (System.nanoTime() < deadline);
+    }
+
+    /** marks from the roots until nothing is left to follow or DEADLINE
+     *  passes; returns true if marking is complete */
+    private static boolean mark(long deadline) {
+        int n = 0;
+
+        shadeRoots();
+        // the clock is read after the work, so every slice makes progress
+        while (scanned < log.size()) {
+            scan(log.get(scanned));
+            scanned += 1;
+            if (++n % CHECK_EVERY == 0 && System.nanoTime() > deadline) {
+                return scanned == log.size();
+            }
+        }
+        return true;
+    }
+
+    /** marks the roots not marked yet */
+    private static void shadeRoots() {
+        shade(ObjectStore.COMMIT, Branches.getHead());
+        for (String hash : Branches.getBranches().values()) {
+            shade(ObjectStore.COMMIT, hash);
+        }
+        for (String hash : StagingArea.getStagedForAddition().values()) {
+            shade(ObjectStore.BLOB, hash);
+        }
+        for (String hash : StagingArea.getStagedForRemoval().values()) {
+            shade(ObjectStore.BLOB, hash);
+        }
+    }
+
+    private static void shade(byte type, String hash) {
+        if (hash != null && marked.add(hash)) {
+            log.add(new Ref(type, hash));
+        }
+    }
+
+    /** marks everything the marked object REF refers to: a blob refers to
+     *  its chunks if it is chunked (see Chunks) */
+    private static void scan(Ref ref) {
+        StoredObject data;
+        Commit c;
+
+        if (ref.type == ObjectStore.BLOB) {
+            data = ObjectStore.readBlob(ref.hash);
+            if (data != null && data.isManifest()) {
+                for (String chunk : Chunks.list(data.getData()).keySet()) {
+                    shade(ObjectStore.BLOB, chunk);
+                }
+            }
+        } else if (ref.type == ObjectStore.COMMIT) {
+            c = Commit.getCommitFromHash(ref.hash);
+            if (c != null) {
+                shade(ObjectStore.TREE, c.getTreeHash());
+                shade(ObjectStore.COMMIT, c.getParentHash());
+                shade(ObjectStore.COMMIT, c.getParentHash2());
+            }
+        } else if (ref.hash.equals(Tree.EMPTY)
+                || ObjectStore.contains(ObjectStore.TREE, ref.hash)) {
+            for (Map.Entry<String, String> entry : Tree.getEntries(ref.hash).entrySet()) {
+                shade(entry.getKey().endsWith("/") ? ObjectStore.TREE : ObjectStore.BLOB,
+                        entry.getValue());
+            }
+        }
+    }
+
+    /** deletes the unmarked loose objects of type TYPE last modified before
+     *  BEFORE, until DEADLINE; returns true once the type is done */
+    private static boolean sweep(byte type, long deadline, long before) {
+        List<String> names = plainFilenamesIn(ObjectStore.looseDir(type));
+        int i = Collections.binarySearch(names, sweepAfter);
+        File file;
+
+        for (i = i < 0 ? -i - 1 : i + 1; i < names.size(); i += 1) {
+            sweepAfter = names.get(i);
+            file = join(ObjectStore.looseDir(type), sweepAfter);
+            if (!marked.contains(sweepAfter) && file.lastModified() < before) {
+                ObjectStore.deleteLoose(type, sweepAfter);
+                commitsSwept |= type == ObjectStore.COMMIT;
+            }
+            if (i % CHECK_EVERY == 0 && System.nanoTime() > deadline) {
+                return i == names.size() - 1;
+            }
+        }
+        return true;
+    }
+
+    /** ends the cycle; the commit indexes are rebuilt on next use if a
+     *  commit they list is gone, and blame starts over */
+    private static void finish() {
+        List<String> cached;
+
+        if (commitsSwept) {
+            CommitGraph.GRAPH_FILE.delete();
+            CommitIndex.INDEX_FILE.delete();
+            MessageIndex.INDEX_FILE.delete();
+            cached = plainFilenamesIn(Blame.CACHE_DIR);
+            if (cached != null) {
+                for (String name : cached) {
+                    join(Blame.CACHE_DIR, name).delete();
+                }
+            }
+        }
+        // the graph is only rebuilt, and counted, by the next commit
+        baseline = commitsSwept ? -1 : CommitGraph.size();
+        phase = IDLE;
+        marked = new HashSet<>();
+        log = new ArrayList<>();
+        scanned = 0;
+        logged = 0;
+        LOG_FILE.delete();
+    }
+
+    /** reads the state of the collector, unless what was read or written
+     *  last is still current */
+    private static void load() {
+        ByteBuffer buf;
+        byte[] id = new byte[ID_LENGTH];
+        byte[] name;
+        byte type;
+        int n;
+
+        if (log != null && Objects.equals(readStamp, stamp(STATE_FILE))) {
+            return;
+        }
+        phase = IDLE;
+        baseline = -1;
+        marked = new HashSet<>();
+        log = new ArrayList<>();
+        scanned = 0;
+        logged = 0;
+        sweepAfter = "";
+        commitsSwept = false;
+        readStamp = stamp(STATE_FILE);
+        if (!STATE_FILE.isFile()) {
+            return;
+        }
+        buf = ByteBuffer.wrap(readContents(STATE_FILE));
+        if (buf.getInt(4) != VERSION) {
+            return;
+        }
+        buf.position(8);
+        phase = buf.get();
+        baseline = buf.getInt();
+        started = buf.getLong();
+        sweepType = buf.get();
+        name = new byte[buf.getInt()];
+        buf.get(name);
+        sweepAfter = new String(name, StandardCharsets.UTF_8);
+        commitsSwept = buf.get() != 0;
+        scanned = buf.getInt();
+        logged = buf.getInt();
+        if (phase == IDLE) {
+            return;
+        }
+
+        // records past the count in the state file were never completed
+        n = logged;
+        if (LOG_FILE.length() < (long) n * RECORD) {
+            // the log is lost, so the cycle starts over
+            start();
+            return;
+        }
+        buf = ByteBuffer.wrap(readContents(LOG_FILE));
+        for (int i = 0; i < n; i += 1) {
+            type = buf.get();
+            buf.get(id);
+            log.add(new Ref(type, bytesToHex(id, 0, ID_LENGTH)));
+            marked.add(log.get(i).hash);
+        }
+    }
+
+    /** appends the objects marked since the last save to the log, then
+     *  writes the state file */
+    private static void save() {
+        File tmp = join(Repository.GITLET_DIR, "gc.tmp");
+        byte[] name = sweepAfter.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer records = ByteBuffer.allocate((log.size() - logged) * RECORD);
+
+        for (Ref ref : log.subList(logged, log.size())) {
+            records.put(ref.type).put(hexToBytes(ref.hash));
+        }
+        records.flip();
+        if (phase == IDLE) {
+            LOG_FILE.delete();
+        } else {
+            try (FileChannel channel = FileChannel.open(LOG_FILE.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // over whatever a slice that died left behind
+                channel.truncate((long) logged * RECORD);
+                while (records.hasRemaining()) {
+                    channel.write(records, (long) logged * RECORD + records.position());
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        logged = log.size();
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeBytes("GCST");
+            out.writeInt(VERSION);
+            out.writeByte(phase);
+            out.writeInt(baseline);
+            out.writeLong(started);
+            out.writeByte(sweepType);
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeBoolean(commitsSwept);
+            out.writeInt(scanned);
+            out.writeInt(logged);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        PackFile.move(tmp, STATE_FILE);
+        readStamp = stamp(STATE_FILE);
+    }
+
+}
@@ -0,0 +1,100 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/** Represents a lazy walk down the first-parent history of a commit,
+ *  newest first, as log prints it.
+ *
+ *  The walk runs over the commit-graph, which has the parent, the time and
+ *  the tree of every commit, so the commits it skips are never opened:
+ *  only those returned by next() are decoded.  The walk can stop after a
+ *  number of commits, stops at the first commit older than a given time
+ *  (the history is assumed to get older along first parents, as git log
+ *  --since does), and can keep only the commits that changed a path, found
+ *  by looking the path up in the trees of the commit and its parent.  So
+ *  the time to the first commit does not grow with the length of the
+ *  history.
+ *  @author Hoho
+ */
+class History implements Iterator<Commit> {
+
+    /** position in the commit-graph of the next commit, or -1 if none */
+    private int next;
+
+    /** commits still to return */
+    private int left;
+
+    /** the time of the oldest commit to return, in milliseconds */
+    private final long since;
+
+    /** the path the commits returned have to change, or null for all */
+    private final String path;
+
+    /** the blob id of PATH in the commit at position candidate */
+    private String blob;
+
+    /** the position of the next commit to look at */
+    private int candidate;
+
+    /**
+     * walks from the commit HEAD, returning at most LIMIT commits, none
+     * older than SINCE (in milliseconds), and only those changing PATH
+     * unless it is null
+     */
+    History(String head, int limit, long since, String path) {
+        this.left = limit;
+        this.since = since;
+        this.path = path;
+        candidate = CommitGraph.position(head);
+        if (path != null && candidate >= 0) {
+            blob = Tree.lookup(CommitGraph.tree(candidate), path);
+        }
+        advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next >= 0;
+    }
+
+    @Override
+    public Commit next() {
+        String hash;
+
+        if (next < 0) {
+            throw new NoSuchElementException();
+        }
+        hash = CommitGraph.id(next);
+        left -= 1;
+        advance();
+        return Commit.getCommitFromHash(hash);
+    }
+
+    /** moves next to the first commit from candidate on to return */
+    private void advance() {
+        int parent;
+        String parentBlob;
+
+        next = -1;
+        while (left > 0 && candidate >= 0 && CommitGraph.time(candidate) >= since) {
+            parent = CommitGraph.firstParent(candidate);
+            if (path == null) {
+                next = candidate;
+                candidate = parent;
+                return;
+            }
+            parentBlob = parent < 0 ? null : Tree.lookup(CommitGraph.tree(parent), path);
+            if (!Objects.equals(blob, parentBlob)) {
+                next = candidate;
+            }
+            candidate = parent;
+            blob = parentBlob;
+            if (next >= 0) {
+                return;
+            }
+        }
+    }
+
+}
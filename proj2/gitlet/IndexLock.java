@@ -0,0 +1,95 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/** Represents the repository lock, which keeps two gitlet processes (or
+ *  two commands of the daemon) from writing the same files at once.
+ *
+ *  The lock is a FileChannel lock on .gitlet/index.lock, so the operating
+ *  system releases it when a process dies, and a lock inside the process
+ *  for its own threads, which FileChannel locks do not tell apart.  It is
+ *  held only while the state, the indexes or the collector state are read
+ *  back and written, by commands moving the head while they act (see
+ *  State.moveHead) and by add while it writes and stages its blob, which
+ *  the collector must not find unreachable in between; other commands do
+ *  their work without it, then record what they changed against whatever
+ *  the others recorded meanwhile (see State.record).  The lock is
+ *  reentrant.
+ *  @author Hoho
+ */
+class IndexLock {
+
+    /** the lock file, never deleted */
+    static final File LOCK_FILE = join(Repository.GITLET_DIR, "index.lock");
+
+    /** the lock of the threads of this process */
+    private static final ReentrantLock THREADS = new ReentrantLock();
+
+    /** the open lock file and its lock, while held */
+    private static FileChannel channel;
+    private static FileLock lock;
+
+    /** runs ACTION holding the lock */
+    static void run(Runnable action) {
+        call(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /** returns what ACTION returns, run holding the lock */
+    static <T> T call(Supplier<T> action) {
+        acquire();
+        try {
+            return action.get();
+        } finally {
+            release();
+        }
+    }
+
+    private static void acquire() {
+        THREADS.lock();
+        if (THREADS.getHoldCount() > 1) {
+            return;
+        }
+        try {
+            channel = FileChannel.open(LOCK_FILE.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = channel.lock();
+        } catch (IOException excp) {
+            close();
+            THREADS.unlock();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void release() {
+        if (THREADS.getHoldCount() == 1) {
+            close();
+        }
+        THREADS.unlock();
+    }
+
+    /** releases the file lock by closing its channel */
+    private static void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException excp) {
+            // the lock goes with the channel either way
+        } finally {
+            channel = null;
+            lock = null;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** Represents the three-way merge of one file, line by line.
+ *
+ *  Both versions are diffed against the split version (diff3): lines the
+ *  split version shares with both are stable, and every region between
+ *  two stable runs is a chunk.  A chunk only one side changed takes that
+ *  side, a chunk both changed the same way takes either, and a chunk both
+ *  changed differently is a conflict, written between markers like
+ *      <<<<<<< HEAD
+ *      the lines of the current branch
+ *      =======
+ *      the lines of the given branch
+ *      >>>>>>>
+ *  so edits to different parts of a file merge cleanly.  The result is
+ *  copied to the output straight from the three versions.  A binary file
+ *  is never merged by lines: any change on both sides makes the whole
+ *  file a conflict.
+ *  @author Hoho
+ */
+class LineMerge {
+
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes();
+    private static final byte[] SEPARATOR = "=======\n".getBytes();
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes();
+
+    /** Size of the buffer bytes are copied through. */
+    private static final int COPY_BUFFER = 8192;
+
+    private final ByteBuffer[] texts;
+    private final int[][] starts;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[COPY_BUFFER];
+
+    private LineMerge(ByteBuffer base, ByteBuffer ours, ByteBuffer theirs, OutputStream out) {
+        texts = new ByteBuffer[] {base, ours, theirs};
+        starts = new int[][] {
+            Diff.lineStarts(base), Diff.lineStarts(ours), Diff.lineStarts(theirs),
+        };
+        this.out = out;
+    }
+
+    /** Writes the merge of OURS and THEIRS, both derived from BASE, to OUT;
+     *  an absent version is passed empty.  Returns true if it conflicts. */
+    static boolean merge(ByteBuffer base, ByteBuffer ours, ByteBuffer theirs,
+                         OutputStream out) throws IOException {
+        LineMerge m = new LineMerge(base, ours, theirs, out);
+
+        if (Diff.isBinary(base) || Diff.isBinary(ours) || Diff.isBinary(theirs)) {
+            m.conflict(0, m.lines(1), 0, m.lines(2));
+            return true;
+        }
+        return m.merge();
+    }
+
+    private boolean merge() throws IOException {
+        int[][] ids = Diff.lineIds(texts, starts);
+        int[] matchOurs = Diff.match(ids[0], ids[1]);
+        int[] matchTheirs = Diff.match(ids[0], ids[2]);
+        int lb = ids[0].length, lo = ids[1].length, lt = ids[2].length;
+        int i = 0, j = 0, k = 0, n, b;
+        boolean conflict = false;
+
+        while (i < lb || j < lo || k < lt) {
+            n = 0;
+            while (i + n < lb && matchOurs[i + n] == j + n && matchTheirs[i + n] == k + n) {
+                n += 1;
+            }
+            if (n > 0) {
+                copy(0, i, i + n);
+                i += n;
+                j += n;
+                k += n;
+                continue;
+            }
+            // the chunk runs up to the next line of the split version both keep
+            b = i;
+            while (b < lb && (matchOurs[b] < 0 || matchTheirs[b] < 0)) {
+                b += 1;
+            }
+            if (b < lb) {
+                conflict |= chunk(i, b, j, matchOurs[b], k, matchTheirs[b]);
+                j = matchOurs[b];
+                k = matchTheirs[b];
+            } else {
+                conflict |= chunk(i, lb, j, lo, k, lt);
+                j = lo;
+                k = lt;
+            }
+            i = b;
+        }
+        return conflict;
+    }
+
+    /** Writes the chunk made of lines [baseLo, baseHi) of the split version,
+     *  [oursLo, oursHi) of ours and [theirsLo, theirsHi) of theirs; returns
+     *  true if it conflicts. */
+    private boolean chunk(int baseLo, int baseHi, int oursLo, int oursHi,
+                          int theirsLo, int theirsHi) throws IOException {
+        if (same(0, baseLo, baseHi, 1, oursLo, oursHi)) {
+            copy(2, theirsLo, theirsHi);
+            return false;
+        }
+        if (same(0, baseLo, baseHi, 2, theirsLo, theirsHi)
+                || same(1, oursLo, oursHi, 2, theirsLo, theirsHi)) {
+            copy(1, oursLo, oursHi);
+            return false;
+        }
+        conflict(oursLo, oursHi, theirsLo, theirsHi);
+        return true;
+    }
+
+    /** Writes lines [oursLo, oursHi) of ours and [theirsLo, theirsHi) of
+     *  theirs between conflict markers. */
+    private void conflict(int oursLo, int oursHi, int theirsLo, int theirsHi)
+        throws IOException {
+        out.write(OURS);
+        copy(1, oursLo, oursHi);
+        out.write(SEPARATOR);
+        copy(2, theirsLo, theirsHi);
+        out.write(THEIRS);
+    }
+
+    private int lines(int text) {
+        return starts[text].length - 1;
+    }
+
+    /** Returns true if lines [aLo, aHi) of text A equal [bLo, bHi) of B. */
+    private boolean same(int a, int aLo, int aHi, int b, int bLo, int bHi) {
+        int aStart = starts[a][aLo], aEnd = starts[a][aHi];
+        int bStart = starts[b][bLo], bEnd = starts[b][bHi];
+
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        return texts[a].duplicate().position(aStart).limit(aEnd)
+                .equals(texts[b].duplicate().position(bStart).limit(bEnd));
+    }
+
+    /** Writes lines [lo, hi) of text T. */
+    private void copy(int t, int lo, int hi) throws IOException {
+        ByteBuffer src = texts[t].duplicate();
+        int n;
+
+        src.position(starts[t][lo]).limit(starts[t][hi]);
+        while (src.hasRemaining()) {
+            n = Math.min(buffer.length, src.remaining());
+            src.get(buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
+    }
+
+}
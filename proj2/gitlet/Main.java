@@ -1,5 +1,11 @@
 package gitlet;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
 import static gitlet.Utils.*;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
@@ -11,6 +17,20 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+        if (System.getProperty("gitlet.stats") != null) {
+            System.err.printf("object cache: %d hits, %d misses, %d bytes%n",
+                    ObjectCache.hits(), ObjectCache.misses(), ObjectCache.size());
+        }
+    }
+
+    /** runs the command ARGS; a command that cannot go on throws a
+     *  GitletException holding the message for the user */
+    static void run(String[] args) {
         if (args.length == 0) {
             eventMessageHandler("Please enter a command.", true);
         }
@@ -34,13 +54,16 @@ public class Main {
                 Repository.rm(args[1]);
                 break;
             case "log":
-                validateNumArgs(args, 1);
-                Repository.log();
+                logHandler(args);
                 break;
             case "global-log":
                 validateNumArgs(args, 1);
                 Repository.globallog();
                 break;
+            case "blame":
+                validateNumArgs(args, 2);
+                Repository.blame(args[1]);
+                break;
             case "find":
                 validateNumArgs(args, 2);
                 Repository.find(args[1]);
@@ -68,6 +91,56 @@ public class Main {
                 validateNumArgs(args, 2);
                 Repository.merge(args[1]);
                 break;
+            case "gc":
+                validateNumArgs(args, 1);
+                Repository.gc();
+                break;
+            case "repack":
+                validateNumArgs(args, 1);
+                Repository.repack();
+                break;
+            case "add-remote":
+                validateNumArgs(args, 3);
+                Repository.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
+                validateNumArgs(args, 2);
+                Repository.rmRemote(args[1]);
+                break;
+            case "fetch":
+                validateNumArgs(args, 3);
+                Repository.fetch(args[1], args[2]);
+                break;
+            case "push":
+                validateNumArgs(args, 3);
+                Repository.push(args[1], args[2]);
+                break;
+            case "pull":
+                validateNumArgs(args, 3);
+                Repository.pull(args[1], args[2]);
+                break;
+            case "bisect":
+                bisectHandler(args);
+                break;
+            case "clone":
+                cloneHandler(args);
+                break;
+            case "upload-pack":
+                validateNumArgs(args, 1);
+                Repository.uploadPack();
+                break;
+            case "receive-pack":
+                validateNumArgs(args, 1);
+                Repository.receivePack();
+                break;
+            case "upload-blobs":
+                validateNumArgs(args, 1);
+                Repository.uploadBlobs();
+                break;
+            case "serve":
+                validateNumArgs(args, 1);
+                Repository.serve();
+                break;
             default:
                 eventMessageHandler("No command with that name exists.", true);
         }
@@ -83,6 +156,111 @@ public class Main {
         }
     }
 
+    /** log [-n COUNT] [--since DATE] [-- PATH], where DATE is yyyy-MM-dd
+     *  or yyyy-MM-dd HH:mm:ss in local time */
+    private static void logHandler(String[] args) {
+        int limit = Integer.MAX_VALUE;
+        long since = Long.MIN_VALUE;
+        String path = null;
+        int i = 1;
+
+        try {
+            while (i < args.length) {
+                if (args[i].equals("-n") && i + 1 < args.length) {
+                    limit = Integer.parseInt(args[i + 1]);
+                    if (limit < 0) {
+                        throw new NumberFormatException();
+                    }
+                } else if (args[i].equals("--since") && i + 1 < args.length) {
+                    since = parseDate(args[i + 1]);
+                } else if (args[i].equals("--") && i + 2 == args.length) {
+                    path = args[i + 1];
+                } else {
+                    eventMessageHandler("Incorrect operands.", true);
+                }
+                i += 2;
+            }
+        } catch (NumberFormatException | ParseException excp) {
+            eventMessageHandler("Incorrect operands.", true);
+        }
+        Repository.log(limit, since, path);
+    }
+
+    /** bisect start [BAD [GOOD...]], bisect bad|good|skip [ID], bisect reset
+     *  or bisect run COMMAND... */
+    private static void bisectHandler(String[] args) {
+        List<String> rest;
+
+        if (args.length < 2) {
+            eventMessageHandler("Incorrect operands.", true);
+        }
+        rest = Arrays.asList(args).subList(2, args.length);
+        switch (args[1]) {
+            case "start":
+                Repository.bisectStart(rest.isEmpty() ? null : rest.get(0),
+                        rest.isEmpty() ? rest : rest.subList(1, rest.size()));
+                break;
+            case "bad":
+            case "good":
+            case "skip":
+                validateNumArgs(args, rest.isEmpty() ? 2 : 3);
+                Repository.bisectMark(args[1], rest.isEmpty() ? null : rest.get(0));
+                break;
+            case "reset":
+                validateNumArgs(args, 2);
+                Repository.bisectReset();
+                break;
+            case "run":
+                if (rest.isEmpty()) {
+                    eventMessageHandler("Incorrect operands.", true);
+                }
+                Repository.bisectRun(rest);
+                break;
+            default:
+                eventMessageHandler("Incorrect operands.", true);
+        }
+    }
+
+    /** clone [--depth N] [--blobless] SOURCE, where SOURCE is the .gitlet
+     *  folder of the repository to clone */
+    private static void cloneHandler(String[] args) {
+        int depth = 0;
+        boolean blobless = false;
+        int i = 1;
+
+        try {
+            while (i < args.length - 1) {
+                if (args[i].equals("--depth") && i + 2 < args.length) {
+                    depth = Integer.parseInt(args[i + 1]);
+                    if (depth < 1) {
+                        throw new NumberFormatException();
+                    }
+                    i += 2;
+                } else if (args[i].equals("--blobless")) {
+                    blobless = true;
+                    i += 1;
+                } else {
+                    eventMessageHandler("Incorrect operands.", true);
+                }
+            }
+        } catch (NumberFormatException excp) {
+            eventMessageHandler("Incorrect operands.", true);
+        }
+        if (i != args.length - 1) {
+            eventMessageHandler("Incorrect operands.", true);
+        }
+        Repository.clone(args[i], depth, blobless);
+    }
+
+    /** returns the time DATE stands for, in milliseconds */
+    private static long parseDate(String date) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat(
+                date.length() > 10 ? "yyyy-MM-dd HH:mm:ss" : "yyyy-MM-dd", Locale.ENGLISH);
+
+        format.setLenient(false);
+        return format.parse(date).getTime();
+    }
+
     // special case since the arguments are more complex compared to other commands
     private static void checkoutHandler(String[] args) {
         if (args.length == 3 && args[1].equals("--")) {
@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** Represents the message index, which lets find answer without decoding
+ *  a single commit.
+ *
+ *  .gitlet/message-index holds "MIDX" and a version, followed by one record
+ *  per commit, appended when the commit is made: the 20-byte commit id,
+ *  the length of the message in bytes and the UTF-8 message.  A record a
+ *  crash cut short is skipped by find and written over by the next one.
+ *  A repository without the file gets it rebuilt the first time find
+ *  runs.
+ *  @author Hoho
+ */
+public class MessageIndex {
+
+    /** version of the file format */
+    private static final int VERSION = 1;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** size of the header: magic and version */
+    private static final int HEADER = 8;
+
+    /** the index file */
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "message-index");
+
+    /** records the message MSG of the new commit HASH */
+    public static void add(String hash, String msg) {
+        IndexLock.run(() -> {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            ByteBuffer buf;
+            long end;
+
+            if (!INDEX_FILE.isFile()) {
+                // the new commit is already in the store, a rebuild includes it
+                rebuild();
+                return;
+            }
+            end = end(mapContents(INDEX_FILE));
+            try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(),
+                    StandardOpenOption.WRITE)) {
+                writeRecord(new DataOutputStream(record), hash, msg);
+                buf = ByteBuffer.wrap(record.toByteArray());
+                // over whatever a command that died left half written
+                channel.truncate(end);
+                while (buf.hasRemaining()) {
+                    channel.write(buf, end + buf.position());
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        });
+    }
+
+    /** returns the sorted ids of the commits whose message is exactly MSG */
+    public static List<String> find(String msg) {
+        List<String> result = new ArrayList<>();
+        byte[] target = msg.getBytes(StandardCharsets.UTF_8);
+        byte[] id = new byte[ID_LENGTH];
+        ByteBuffer buf;
+        int len, start, end;
+
+        if (!INDEX_FILE.isFile()) {
+            rebuild();
+        }
+        buf = mapContents(INDEX_FILE);
+        end = end(buf);
+        buf.position(HEADER);
+        while (buf.position() < end) {
+            buf.get(id);
+            len = buf.getInt();
+            start = buf.position();
+            buf.position(start + len);
+            // messages of a different length are skipped without decoding
+            if (len == target.length
+                    && buf.duplicate().position(start).limit(start + len)
+                        .equals(ByteBuffer.wrap(target))) {
+                result.add(bytesToHex(id, 0, ID_LENGTH));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** returns the end of the last complete record of the index BUF;
+     *  what follows is a record cut short by a crash */
+    private static int end(ByteBuffer buf) {
+        int pos = HEADER, len;
+
+        while (buf.limit() - pos >= ID_LENGTH + 4) {
+            len = buf.getInt(pos + ID_LENGTH);
+            if (len < 0 || len > buf.limit() - pos - ID_LENGTH - 4) {
+                break;
+            }
+            pos += ID_LENGTH + 4 + len;
+        }
+        return pos;
+    }
+
+    /** rewrites the index from the commits of the repository, decoding
+     *  them in parallel */
+    private static synchronized void rebuild() {
+        List<String> ids = CommitIndex.all();
+        List<String> messages = Commit.decodeAll(ids, Commit::getMessage);
+
+        IndexLock.run(() -> {
+            File tmp = join(Repository.GITLET_DIR, "message-index.tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeBytes("MIDX");
+                out.writeInt(VERSION);
+                for (int i = 0; i < ids.size(); i += 1) {
+                    writeRecord(out, ids.get(i), messages.get(i));
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            PackFile.move(tmp, INDEX_FILE);
+        });
+    }
+
+    private static void writeRecord(DataOutputStream out, String hash, String msg)
+        throws IOException {
+        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+
+        out.write(hexToBytes(hash));
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+}
@@ -0,0 +1,136 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToLongFunction;
+
+/** Represents the cache of decoded objects shared by everything one
+ *  process does, so that a command reading the same commit, tree or blob
+ *  several times only reads and decodes it once.
+ *
+ *  Objects are kept by id, in least recently used order, until the
+ *  estimated bytes they hold reach CAPACITY; the least recently used are
+ *  evicted first.  An object is weighed again whenever it is found, since
+ *  commits and blobs grow as their file map or contents are first asked
+ *  for.  Weighers run outside the lock of the cache, since weighing a
+ *  commit takes its own lock, which is held while its file map is built
+ *  from trees read through the cache.  Objects larger than a quarter of
+ *  CAPACITY are never kept.  Since
+ *  an id always names the same contents, entries never go stale; they only
+ *  have to go when the garbage collector deletes the object.
+ *  @author Hoho
+ */
+class ObjectCache {
+
+    /** Bytes the cached objects may hold. */
+    static final long CAPACITY = 64L << 20;
+
+    /** Estimated overhead of any entry, in bytes. */
+    static final long ENTRY_OVERHEAD = 128;
+
+    /** A cached object and its weight. */
+    private static class Entry {
+        private final Object value;
+        private final ToLongFunction<Object> weigher;
+        private long weight;
+
+        Entry(Object value, ToLongFunction<Object> weigher, long weight) {
+            this.value = value;
+            this.weigher = weigher;
+            this.weight = weight;
+        }
+    }
+
+    /** The cached objects by id, least recently used first. */
+    private static final LinkedHashMap<String, Entry> ENTRIES =
+            new LinkedHashMap<>(256, 0.75f, true);
+
+    /** Bytes held by the cached objects. */
+    private static long size;
+
+    private static long hits;
+    private static long misses;
+
+    /** Returns the cached object HASH if it is of class TYPE, or null. */
+    static <T> T get(String hash, Class<T> type) {
+        Entry entry;
+        long weight;
+
+        synchronized (ObjectCache.class) {
+            entry = ENTRIES.get(hash);
+            if (entry == null || !type.isInstance(entry.value)) {
+                misses += 1;
+                return null;
+            }
+            hits += 1;
+        }
+        weight = entry.weigher.applyAsLong(entry.value);
+        synchronized (ObjectCache.class) {
+            // unless evicted or replaced meanwhile
+            if (ENTRIES.get(hash) == entry) {
+                size += weight - entry.weight;
+                entry.weight = weight;
+                evict();
+            }
+        }
+        return type.cast(entry.value);
+    }
+
+    /** Caches VALUE, the decoded object HASH, weighed by WEIGHER. */
+    @SuppressWarnings("unchecked")
+    static <T> void put(String hash, T value, ToLongFunction<? super T> weigher) {
+        ToLongFunction<Object> w = (ToLongFunction<Object>) weigher;
+        Entry entry = new Entry(value, w, w.applyAsLong(value));
+        Entry old;
+
+        if (entry.weight > CAPACITY / 4) {
+            return;
+        }
+        synchronized (ObjectCache.class) {
+            old = ENTRIES.put(hash, entry);
+            if (old != null) {
+                size -= old.weight;
+            }
+            size += entry.weight;
+            evict();
+        }
+    }
+
+    /** Forgets the object HASH, once deleted from the repository. */
+    static synchronized void remove(String hash) {
+        Entry old = ENTRIES.remove(hash);
+
+        if (old != null) {
+            size -= old.weight;
+        }
+    }
+
+    /** Forgets every object. */
+    static synchronized void clear() {
+        ENTRIES.clear();
+        size = 0;
+    }
+
+    static synchronized long hits() {
+        return hits;
+    }
+
+    static synchronized long misses() {
+        return misses;
+    }
+
+    /** Returns the bytes the cached objects hold. */
+    static synchronized long size() {
+        return size;
+    }
+
+    private static void evict() {
+        Iterator<Entry> it = ENTRIES.values().iterator();
+
+        while (size > CAPACITY && it.hasNext()) {
+            size -= it.next().weight;
+            it.remove();
+        }
+    }
+
+}
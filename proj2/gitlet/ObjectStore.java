@@ -0,0 +1,489 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static gitlet.Utils.*;
+
+/** Represents the object database of the repository.
+ *  New commits, trees and blobs are written loose, one file per object
+ *  under commits/, trees/ and blobs/; repack folds them into a packfile under packs/
+ *  so that a long history does not cost one inode (and one open) per object,
+ *  storing blobs that resemble another one as a delta against it.
+ *  Readers look for a loose file first and then search the packs; either
+ *  way the object comes back as a read-only buffer, mapped from disk
+ *  unless the object is too small for a mapping to pay off.
+ *
+ *  Blobs are stored deflated (zlib) and kept that way inside packs; their
+ *  ids are still the hashes of the uncompressed contents, so compression
+ *  never changes which blob a commit refers to.  Blob inflates them.  A
+ *  file of Chunks.THRESHOLD bytes or more is stored as chunks instead, its
+ *  blob being the manifest listing them (see Chunks); manifests and chunks
+ *  are left out of the search for deltas, since they share data already.
+ *  @author Hoho
+ */
+public class ObjectStore {
+
+    /** Type tag of commit objects. */
+    static final byte COMMIT = 1;
+    /** Type tag of blob objects. */
+    static final byte BLOB = 2;
+    /** Type tag of tree objects. */
+    static final byte TREE = 3;
+
+    /** All object types, in the order repack visits them. */
+    static final byte[] TYPES = {COMMIT, TREE, BLOB};
+
+    /** Loose objects smaller than this are read onto the heap instead of
+     *  being mapped, since a mapping costs more than a short read. */
+    private static final long MAP_THRESHOLD = 16 * 1024;
+
+    /** Compression level of blobs, zlib's own default. */
+    static final int BLOB_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    /** Number of preceding blobs repack tries as the base of a delta. */
+    private static final int WINDOW = 10;
+
+    /** Bound on the bytes of the blobs held in the window. */
+    private static final long WINDOW_MEMORY = 256L << 20;
+
+    /** Blobs larger than this are always stored whole. */
+    private static final int MAX_DELTA_SIZE = 32 << 20;
+
+    /** Blobs smaller than this are always stored whole. */
+    private static final int MIN_DELTA_SIZE = 64;
+
+    /** The packs of the repository, opened on first use. */
+    private static List<PackFile> packs;
+
+    /** Stamp of the pack folder when the packs were listed. */
+    private static Object packsStamp;
+
+    /** Returns the folder holding the loose objects of type TYPE. */
+    static File looseDir(byte type) {
+        switch (type) {
+            case COMMIT:
+                return Repository.COMMIT_DIR;
+            case BLOB:
+                return Repository.BLOB_DIR;
+            case TREE:
+                return Repository.TREE_DIR;
+            default:
+                throw new IllegalArgumentException("unknown object type " + type);
+        }
+    }
+
+    // synchronized since commits may be decoded from several threads
+    private static synchronized List<PackFile> getPacks() {
+        if (packs == null) {
+            packsStamp = stamp(Repository.PACK_DIR);
+            packs = PackFile.listPacks(Repository.PACK_DIR);
+        }
+        return packs;
+    }
+
+    /** Forgets the packs listed if DISCARD is set or packs were added or
+     *  removed since, so that the next read lists them again. */
+    static synchronized void refresh(boolean discard) {
+        if (packs != null && (discard || !Objects.equals(packsStamp, stamp(Repository.PACK_DIR)))) {
+            packs = null;
+        }
+    }
+
+    /** Writes DATA as the loose object HASH of type TYPE. */
+    static void writeLoose(byte type, String hash, byte[] data) {
+        writeStored(type, hash, type == BLOB ? deflate(data, BLOB_LEVEL) : data);
+    }
+
+    /** Writes STORED, already in the form the store keeps, as the loose
+     *  object HASH of type TYPE; it is written aside and renamed into
+     *  place, so no reader ever sees a partial object under its id. */
+    static void writeStored(byte type, String hash, byte[] stored) {
+        File tmp;
+
+        try {
+            tmp = File.createTempFile("ingest", ".tmp", Repository.GITLET_DIR);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContents(tmp, stored);
+        PackFile.move(tmp, join(looseDir(type), hash));
+    }
+
+    /**
+     * streams the contents of SOURCE into the store as a loose object of
+     * type TYPE, hashing it (and deflating it, for a blob) on the way so
+     * that memory use does not depend on the size of the file; returns the
+     * id of the uncompressed contents
+     */
+    static String writeLoose(byte type, File source) {
+        Deflater deflater = new Deflater(BLOB_LEVEL);
+        File tmp;
+        String hash;
+
+        if (type == BLOB && source.length() >= Chunks.THRESHOLD) {
+            return Chunks.write(source);
+        }
+        try {
+            tmp = File.createTempFile("ingest", ".tmp", Repository.GITLET_DIR);
+            try (InputStream in = Files.newInputStream(source.toPath());
+                 OutputStream out = type == BLOB
+                         ? new DeflaterOutputStream(Files.newOutputStream(tmp.toPath()),
+                                 deflater, STREAM_CHUNK)
+                         : Files.newOutputStream(tmp.toPath())) {
+                hash = digestToHex(copyAndDigest(in, out));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        if (freshen(type, hash)) {
+            tmp.delete();
+        } else {
+            PackFile.move(tmp, join(looseDir(type), hash));
+        }
+        return hash;
+    }
+
+    /** Removes the loose copy of the object HASH, if there is one. */
+    static void deleteLoose(byte type, String hash) {
+        restrictedDelete(join(looseDir(type), hash));
+        ObjectCache.remove(hash);
+    }
+
+    /** Returns the bytes of the commit or tree HASH of type TYPE, or null
+     *  if the repository does not contain it; blobs are read by readBlob. */
+    static ByteBuffer read(byte type, String hash) {
+        StoredObject object = readObject(type, hash);
+
+        return object == null ? null : object.getData();
+    }
+
+    /** Returns the blob HASH, stored or resolved from a delta, or null if
+     *  the repository does not contain it. */
+    static StoredObject readBlob(String hash) {
+        return readObject(BLOB, hash);
+    }
+
+    /** Returns the object HASH of type TYPE, or null if the repository
+     *  does not contain it. */
+    private static StoredObject readObject(byte type, String hash) {
+        File file = join(looseDir(type), hash);
+        int pos;
+
+        if (file.isFile()) {
+            if (file.length() < MAP_THRESHOLD) {
+                return new StoredObject(ByteBuffer.wrap(readContents(file)).asReadOnlyBuffer());
+            }
+            return new StoredObject(mapContents(file));
+        }
+        if (!isId(hash)) {
+            return null;
+        }
+        for (PackFile pack : getPacks()) {
+            pos = pack.find(hash);
+            if (pos >= 0 && pack.typeAt(pos) == type) {
+                return pack.read(pos);
+            }
+        }
+        return null;
+    }
+
+    /** Returns the bytes of the object HASH the way a pack stores a whole
+     *  object, for writing one: a blob that was stored as a delta is
+     *  deflated again. */
+    static ByteBuffer readStored(byte type, String hash) {
+        StoredObject object = readObject(type, hash);
+
+        return object == null ? null : object.stored(BLOB_LEVEL);
+    }
+
+    /** Returns the length of the contents of the blob HASH. */
+    private static long blobLength(String hash) {
+        int pos;
+
+        if (!join(looseDir(BLOB), hash).isFile()) {
+            for (PackFile pack : getPacks()) {
+                pos = pack.find(hash);
+                if (pos >= 0) {
+                    return pack.length(pos);
+                }
+            }
+        }
+        return readBlob(hash).length();
+    }
+
+    /** Returns true if the repository contains the object HASH of type TYPE. */
+    static boolean contains(byte type, String hash) {
+        int pos;
+
+        if (join(looseDir(type), hash).isFile()) {
+            return true;
+        }
+        if (!isId(hash)) {
+            return false;
+        }
+        for (PackFile pack : getPacks()) {
+            pos = pack.find(hash);
+            if (pos >= 0 && pack.typeAt(pos) == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if the repository contains the object HASH of type
+     *  TYPE, touching its loose copy if it has one, so that an object
+     *  written again is not swept as expired (see GarbageCollector). */
+    static boolean freshen(byte type, String hash) {
+        File file = join(looseDir(type), hash);
+
+        if (file.isFile()) {
+            file.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        return contains(type, hash);
+    }
+
+    /** Returns true if HASH is a whole object id, which is all a pack can
+     *  be searched for: UID_LENGTH lowercase hex digits. */
+    private static boolean isId(String hash) {
+        return hash.length() == UID_LENGTH && hash.matches("[0-9a-f]*");
+    }
+
+    /** Returns the ids of all objects of type TYPE, loose or packed, sorted. */
+    static List<String> list(byte type) {
+        TreeSet<String> result = new TreeSet<>();
+        List<String> loose = plainFilenamesIn(looseDir(type));
+
+        if (loose != null) {
+            result.addAll(loose);
+        }
+        for (PackFile pack : getPacks()) {
+            result.addAll(pack.list(type));
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * fold every loose object and every existing pack into a single new
+     * pack, then remove the loose files and the old packs
+     */
+    public static void repack() {
+        repack(null);
+    }
+
+    /**
+     * fold the loose objects and the packs into new packs, a single one
+     * unless it would outgrow PackFile.MAX_SIZE, keeping
+     * only the objects in LIVE (every object if LIVE is null), then remove
+     * the loose files it packed or left out and the old packs; returns the
+     * number of objects left out
+     */
+    static int repack(Set<String> live) {
+        TreeMap<String, Byte> objects = new TreeMap<>();
+        List<String> blobs = new ArrayList<>();
+        HashSet<String> chunked = new HashSet<>();
+        List<PackFile> old = getPacks();
+        List<List<String>> loose = new ArrayList<>();
+        HashSet<File> written;
+        StoredObject blob;
+        int looseCount = 0, dropped = 0;
+
+        // the loose files are listed first, so that every one of them is
+        // packed or dropped below; those written later are left alone
+        for (byte type : TYPES) {
+            loose.add(plainFilenamesIn(looseDir(type)));
+            looseCount += loose.get(loose.size() - 1).size();
+            for (String hash : list(type)) {
+                if (live == null || live.contains(hash)) {
+                    objects.put(hash, type);
+                    blob = type == BLOB ? readBlob(hash) : null;
+                    if (blob != null && blob.isManifest()) {
+                        chunked.add(hash);
+                        chunked.addAll(Chunks.list(blob.getData()).keySet());
+                    } else if (type == BLOB) {
+                        blobs.add(hash);
+                    }
+                } else {
+                    dropped += 1;
+                }
+            }
+        }
+        if (objects.isEmpty() || (dropped == 0 && looseCount == 0 && old.size() <= 1)) {
+            return 0;
+        }
+
+        blobs.removeAll(chunked);
+        written = new HashSet<>();
+        for (PackFile p : PackFile.write(Repository.PACK_DIR, objects, findDeltas(blobs))) {
+            written.add(p.getPackFile());
+        }
+
+        for (PackFile p : old) {
+            if (!written.contains(p.getPackFile())) {
+                p.delete();
+            }
+        }
+        for (int i = 0; i < TYPES.length; i += 1) {
+            for (String hash : loose.get(i)) {
+                deleteLoose(TYPES[i], hash);
+            }
+        }
+        packs = null;
+        if (dropped > 0) {
+            ObjectCache.clear();
+        }
+        return dropped;
+    }
+
+    /** A blob in the delta window of repack. */
+    private static class Base {
+        private final String hash;
+        private final byte[] contents;
+        private final int depth;
+        private Delta delta;
+
+        Base(String hash, byte[] contents, int depth) {
+            this.hash = hash;
+            this.contents = contents;
+            this.depth = depth;
+        }
+
+        /** the instructions turning this blob into TARGET */
+        byte[] encode(byte[] target) {
+            if (delta == null) {
+                delta = new Delta(contents);
+            }
+            return delta.encode(target);
+        }
+    }
+
+    /**
+     * returns the blobs of BLOBS worth storing as a delta, each mapped to
+     * the id of its base followed by the deflated instructions
+     *
+     * Blobs are sorted so that versions of the same file (by the paths the
+     * commits give them) end up next to each other, largest first, and
+     * every blob is tried against the WINDOW blobs before it.  The delta
+     * kept is the smallest once weighted by the depth of its base, so that
+     * shallow bases serve many versions instead of every version extending
+     * one long chain, and it is only kept if it beats storing the blob
+     * whole.  A base is only taken if it sits less than MAX_DEPTH deltas
+     * deep, which bounds the work of reading any blob back.
+     */
+    private static TreeMap<String, byte[]> findDeltas(List<String> blobs) {
+        TreeMap<String, byte[]> result = new TreeMap<>();
+        HashMap<String, String> paths = blobPaths();
+        HashMap<String, Long> sizes = new HashMap<>();
+        ArrayDeque<Base> window = new ArrayDeque<>();
+        List<String> order = new ArrayList<>(blobs);
+        long windowBytes = 0;
+        byte[] contents, best, delta;
+        StoredObject blob;
+        Base bestBase;
+        long limit;
+
+        for (String hash : blobs) {
+            sizes.put(hash, blobLength(hash));
+        }
+        order.sort(Comparator.comparing((String h) -> baseName(paths.getOrDefault(h, "")))
+                .thenComparing(h -> paths.getOrDefault(h, ""))
+                .thenComparing(h -> -sizes.get(h))
+                .thenComparing(h -> h));
+
+        for (String hash : order) {
+            if (sizes.get(hash) > MAX_DELTA_SIZE) {
+                continue;
+            }
+            blob = readBlob(hash);
+            contents = blob.bytes();
+            if (contents.length < MIN_DELTA_SIZE) {
+                continue;
+            }
+            // as in git, a delta has to save at least half of the blob, and
+            // it has to beat the blob deflated if that is known without work
+            limit = contents.length / 2;
+            if (!blob.isRaw()) {
+                limit = Math.min(limit, blob.getData().remaining());
+            }
+
+            best = null;
+            bestBase = null;
+            for (Base base : window) {
+                if (base.depth >= PackFile.MAX_DEPTH
+                        || Math.abs(base.contents.length - contents.length) > contents.length / 2) {
+                    continue;
+                }
+                delta = deflate(base.encode(contents), BLOB_LEVEL);
+                if (best == null || (long) delta.length * (base.depth + 1)
+                        < (long) best.length * (bestBase.depth + 1)) {
+                    best = delta;
+                    bestBase = base;
+                }
+            }
+            if (best != null && UID_LENGTH / 2 + best.length < limit) {
+                byte[] entry = new byte[UID_LENGTH / 2 + best.length];
+                System.arraycopy(hexToBytes(bestBase.hash), 0, entry, 0, UID_LENGTH / 2);
+                System.arraycopy(best, 0, entry, UID_LENGTH / 2, best.length);
+                result.put(hash, entry);
+            }
+
+            window.addLast(new Base(hash, contents,
+                    result.containsKey(hash) ? bestBase.depth + 1 : 0));
+            windowBytes += contents.length;
+            while (window.size() > WINDOW || windowBytes > WINDOW_MEMORY) {
+                windowBytes -= window.removeFirst().contents.length;
+            }
+        }
+        return result;
+    }
+
+    /** Returns a path every blob referenced by some commit is found at. */
+    private static HashMap<String, String> blobPaths() {
+        HashMap<String, String> result = new HashMap<>();
+        HashSet<String> seen = new HashSet<>();
+
+        for (String tree : Commit.decodeAll(list(COMMIT), Commit::getTreeHash)) {
+            collectPaths(tree, "", seen, result);
+        }
+        return result;
+    }
+
+    private static void collectPaths(String tree, String prefix, HashSet<String> seen,
+                                     HashMap<String, String> result) {
+        if (!seen.add(tree)) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : Tree.getEntries(tree).entrySet()) {
+            if (entry.getKey().endsWith("/")) {
+                collectPaths(entry.getValue(), prefix + entry.getKey(), seen, result);
+            } else {
+                result.putIfAbsent(entry.getValue(), prefix + entry.getKey());
+            }
+        }
+    }
+
+    private static String baseName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+}
@@ -0,0 +1,626 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Represents one packfile together with its offset index.
+ *
+ *  pack-ID.pack -- "PACK", version, object count, then for every object
+ *                  its type byte, its length and its bytes as stored
+ *                  (a blob deflated), or for a blob stored as a delta the
+ *                  type DELTA, its length, the 20-byte id of its base in
+ *                  the same pack and the deflated Delta instructions
+ *  pack-ID.idx  -- "PIDX", version, object count, a 256-entry fanout table,
+ *                  the sorted 20-byte object ids, their type bytes and
+ *                  the offset of each object inside the pack
+ *
+ *  Both files are memory-mapped on first use, so a lookup is a binary
+ *  search over the mapped ids (narrowed by the fanout table) and the
+ *  object is served as a slice of the mapped pack without copying.  A
+ *  delta is resolved against its base (itself possibly a delta, up to
+ *  MAX_DEPTH deep) and the blob is handed out as its raw contents, marked
+ *  as such (see StoredObject) so that readers do not inflate it again.
+ *
+ *  Since a pack is mapped as one buffer, no pack outgrows MAX_SIZE: the
+ *  bytes written are counted and a pack is closed for the next one before
+ *  an object would go past it.
+ *  @author Hoho
+ */
+class PackFile {
+
+    /** Format version written into both files. */
+    private static final int VERSION = 2;
+
+    /** Type byte of a pack entry holding a blob as a delta. */
+    static final byte DELTA = 4;
+
+    /** Longest chain of deltas a blob may sit at the end of. */
+    static final int MAX_DEPTH = 10;
+
+    /** Length of a raw SHA-1 id. */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** Largest size of a pack, which is mapped as one buffer. */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /** Size of the pack header: magic, version and count. */
+    private static final int HEADER = 12;
+
+    /** Size of the type and length before the bytes of a pack entry. */
+    private static final int ENTRY_HEADER = 5;
+
+    /** Size of the fixed idx header: magic, version, count and fanout. */
+    private static final int IDX_HEADER = 12 + 256 * 4;
+
+    /** The pack file holding the object bytes. */
+    private final File packFile;
+    /** The idx file holding the sorted ids and offsets. */
+    private final File idxFile;
+
+    /** Mapped contents of the idx file. */
+    private ByteBuffer index;
+    /** Number of objects in this pack. */
+    private int count;
+    /** Mapped contents of the pack file. */
+    private ByteBuffer data;
+
+    /** Bound on the bytes of resolved blobs kept by one pack. */
+    private static final long BASE_CACHE = 64L << 20;
+
+    /** Blobs of this pack lately resolved, by position, so that reading
+     *  the versions of a file one after the other does not resolve each
+     *  delta chain again from its start. */
+    private final LinkedHashMap<Integer, byte[]> resolved =
+            new LinkedHashMap<>(16, 0.75f, true);
+    /** Bytes held by resolved. */
+    private long resolvedBytes;
+
+    PackFile(File idxFile) {
+        String name = idxFile.getName();
+        this.idxFile = idxFile;
+        this.packFile = join(idxFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+    }
+
+    /** Returns the packs found in DIR, in name order. */
+    static List<PackFile> listPacks(File dir) {
+        List<PackFile> result = new ArrayList<>();
+        List<String> names = plainFilenamesIn(dir);
+
+        if (names == null) {
+            return result;
+        }
+        for (String name : names) {
+            if (name.endsWith(".idx")) {
+                result.add(new PackFile(join(dir, name)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * write new packs into DIR holding every object of OBJECTS (a map from
+     * object ids to their types), reading the bytes of each object from
+     * the object store unless DELTAS holds the base id and instructions of
+     * a blob to store as a delta; a pack is closed and the next one started
+     * before it outgrows MAX_SIZE, and every idx is written last so that a
+     * pack never becomes visible half written
+     */
+    static List<PackFile> write(File dir, TreeMap<String, Byte> objects,
+                                Map<String, byte[]> deltas) {
+        List<PackFile> result = new ArrayList<>();
+        List<String> order = new ArrayList<>(objects.keySet());
+        HashMap<String, Integer> depths = new HashMap<>();
+        Output pack = null;
+        ByteBuffer data;
+        byte[] delta;
+        byte type;
+        int depth;
+
+        // bases go before their deltas, so that a delta whose base went to
+        // a pack already closed can be stored whole instead
+        for (String hash : order) {
+            depth = 0;
+            for (delta = deltas.get(hash); delta != null; delta = deltas.get(baseOf(delta))) {
+                depth += 1;
+            }
+            depths.put(hash, depth);
+        }
+        order.sort(Comparator.comparingInt(depths::get));
+
+        try {
+            pack = new Output(dir);
+            for (String hash : order) {
+                type = objects.get(hash);
+                delta = deltas.get(hash);
+                if (delta != null && !pack.contains(baseOf(delta))) {
+                    delta = null;
+                }
+                data = delta != null ? ByteBuffer.wrap(delta) : ObjectStore.readStored(type, hash);
+                if (!pack.fits(data.remaining())) {
+                    result.add(pack.finish());
+                    pack = new Output(dir);
+                    if (delta != null) {
+                        delta = null;
+                        data = ObjectStore.readStored(type, hash);
+                    }
+                }
+                pack.add(hash, type, delta != null, data);
+            }
+            result.add(pack.finish());
+        } catch (IOException excp) {
+            abort(pack, result);
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (RuntimeException excp) {
+            abort(pack, result);
+            throw excp;
+        }
+        return result;
+    }
+
+    /** Returns the id of the base of the delta DELTA, as written by write. */
+    private static String baseOf(byte[] delta) {
+        return bytesToHex(delta, 0, ID_LENGTH);
+    }
+
+    /** writes the idx of the pack NAME in DIR, whose objects have the
+     *  sorted raw ids IDS, the types TYPES and the offsets OFFSETS, FANOUT
+     *  counting the ids by first byte; returns the pack */
+    private static PackFile writeIndex(File dir, String name, byte[] ids, byte[] types,
+                                       long[] offsets, int[] fanout) {
+        int n = types.length;
+        File tmp;
+
+        for (int i = 1; i < 256; i += 1) {
+            fanout[i] += fanout[i - 1];
+        }
+        tmp = join(dir, name + ".idx.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeBytes("PIDX");
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            for (int f : fanout) {
+                out.writeInt(f);
+            }
+            out.write(ids);
+            out.write(types);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        move(tmp, join(dir, name + ".idx"));
+
+        return new PackFile(join(dir, name + ".idx"));
+    }
+
+    /**
+     * streams every object of OBJECTS (a map from object ids to their
+     * types) to OUT as one pack, in the order of OBJECTS: "PACK", version,
+     * object count, then for every object its 20-byte id, its type byte,
+     * its length and its bytes as stored; the ids travel with the objects
+     * since the receiver has no idx
+     */
+    static void send(DataOutputStream out, Map<String, Byte> objects) throws IOException {
+        out.writeBytes("PACK");
+        out.writeInt(VERSION);
+        out.writeInt(objects.size());
+        for (Map.Entry<String, Byte> entry : objects.entrySet()) {
+            ByteBuffer data = ObjectStore.readStored(entry.getValue(), entry.getKey());
+            out.write(hexToBytes(entry.getKey()));
+            out.writeByte(entry.getValue());
+            out.writeInt(data.remaining());
+            writeBuffer(out, data);
+        }
+    }
+
+    /**
+     * reads a pack streamed by send from IN and stores it in DIR as new
+     * packs, as many as MAX_SIZE asks for, checking the id of every object
+     * against its contents; adds the ids of the commits to COMMITS, in the
+     * order they came, and returns the packs, none if the stream held no
+     * object
+     */
+    static List<PackFile> receive(File dir, DataInputStream in, List<String> commits)
+        throws IOException {
+        byte[] magic = new byte[4], id = new byte[ID_LENGTH], bytes;
+        List<PackFile> result = new ArrayList<>();
+        List<String> manifests = new ArrayList<>();
+        Output pack;
+        String hash;
+        byte type;
+        int n, pos;
+
+        in.readFully(magic);
+        if (!new String(magic, StandardCharsets.US_ASCII).equals("PACK")
+                || in.readInt() != VERSION) {
+            throw error("Unknown pack format.");
+        }
+        n = in.readInt();
+        if (n == 0) {
+            return result;
+        }
+        pack = new Output(dir);
+        try {
+            for (int i = 0; i < n; i += 1) {
+                in.readFully(id);
+                type = in.readByte();
+                bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                hash = bytesToHex(id, 0, ID_LENGTH);
+                if (type == ObjectStore.BLOB && Chunks.isManifest(ByteBuffer.wrap(bytes))) {
+                    // checked once the chunks can be read back
+                    manifests.add(hash);
+                } else if (!hash.equals(type == ObjectStore.BLOB
+                        ? sha1((Object) inflate(ByteBuffer.wrap(bytes))) : sha1((Object) bytes))) {
+                    throw error("Corrupt object %s received.", hash);
+                }
+                if (type == ObjectStore.COMMIT) {
+                    commits.add(hash);
+                }
+                if (!pack.fits(bytes.length)) {
+                    result.add(pack.finish());
+                    pack = new Output(dir);
+                }
+                pack.add(hash, type, false, ByteBuffer.wrap(bytes));
+            }
+            result.add(pack.finish());
+        } catch (IOException | RuntimeException excp) {
+            abort(pack, result);
+            throw excp;
+        }
+
+        ObjectStore.refresh(true);
+        for (String manifest : manifests) {
+            for (PackFile p : result) {
+                pos = p.find(manifest);
+                if (pos >= 0 && !manifest.equals(Chunks.digest(p.read(pos).getData()))) {
+                    deleteAll(result);
+                    ObjectStore.refresh(true);
+                    throw error("Corrupt object %s received.", manifest);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** drops PACK, still being written, and the packs PACKS written before */
+    private static void abort(Output pack, List<PackFile> packs) {
+        if (pack != null) {
+            pack.abort();
+        }
+        deleteAll(packs);
+    }
+
+    private static void deleteAll(List<PackFile> packs) {
+        for (PackFile p : packs) {
+            p.delete();
+        }
+    }
+
+    /** A pack being written, which objects are added to as long as it
+     *  stays within MAX_SIZE. */
+    private static class Output {
+        private final File dir;
+        private final File tmp;
+        private final DataOutputStream out;
+        /** the type and offset of every object added, by id */
+        private final TreeMap<String, long[]> entries = new TreeMap<>();
+        /** bytes written so far */
+        private long size;
+
+        Output(File dir) throws IOException {
+            this.dir = dir;
+            tmp = File.createTempFile("pack", ".pack.tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeBytes("PACK");
+            out.writeInt(VERSION);
+            // the object count, set by finish
+            out.writeInt(0);
+            size = HEADER;
+        }
+
+        /** returns true if an object of LENGTH bytes still fits */
+        boolean fits(long length) {
+            return size + ENTRY_HEADER + length <= MAX_SIZE;
+        }
+
+        boolean contains(String hash) {
+            return entries.containsKey(hash);
+        }
+
+        /** adds the object HASH of type TYPE, whose bytes are DATA as
+         *  stored, or as a delta if DELTA is set */
+        void add(String hash, byte type, boolean delta, ByteBuffer data) throws IOException {
+            if (!fits(data.remaining())) {
+                throw error("Object %s is too large for a pack.", hash);
+            }
+            entries.put(hash, new long[] {type, size});
+            out.writeByte(delta ? DELTA : type);
+            out.writeInt(data.remaining());
+            size += ENTRY_HEADER + data.remaining();
+            writeBuffer(out, data);
+        }
+
+        /** completes the pack and writes its idx; returns the pack */
+        PackFile finish() throws IOException {
+            int n = entries.size(), i = 0;
+            byte[] ids = new byte[n * ID_LENGTH], types = new byte[n], id;
+            long[] offsets = new long[n];
+            int[] fanout = new int[256];
+            String name;
+
+            out.close();
+            try (RandomAccessFile file = new RandomAccessFile(tmp, "rw")) {
+                file.seek(8);
+                file.writeInt(n);
+            }
+            // the idx wants the objects sorted by id, whatever their pack order
+            for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                id = hexToBytes(entry.getKey());
+                System.arraycopy(id, 0, ids, i * ID_LENGTH, ID_LENGTH);
+                types[i] = (byte) entry.getValue()[0];
+                offsets[i] = entry.getValue()[1];
+                fanout[id[0] & 0xff] += 1;
+                i += 1;
+            }
+            name = "pack-" + sha1(String.join("", entries.keySet()));
+            move(tmp, join(dir, name + ".pack"));
+            return writeIndex(dir, name, ids, types, offsets, fanout);
+        }
+
+        /** drops the pack */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException excp) {
+                // the file goes anyway
+            }
+            tmp.delete();
+        }
+    }
+
+    /** Copies the remaining bytes of BUF to OUT. */
+    static void writeBuffer(DataOutputStream out, ByteBuffer buf) throws IOException {
+        byte[] chunk;
+
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+        chunk = new byte[Math.min(buf.remaining(), 1 << 16)];
+        buf = buf.duplicate();
+        while (buf.hasRemaining()) {
+            int n = Math.min(chunk.length, buf.remaining());
+            buf.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /** Renames FROM to TO, replacing TO atomically. */
+    static void move(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the position of HASH in the sorted id table, or -1. */
+    int find(String hash) {
+        byte[] id = hexToBytes(hash);
+        int first = id[0] & 0xff;
+        int lo, hi, mid, cmp;
+
+        loadIndex();
+        lo = first == 0 ? 0 : fanoutAt(first - 1);
+        hi = fanoutAt(first) - 1;
+        while (lo <= hi) {
+            mid = (lo + hi) >>> 1;
+            cmp = compareId(mid, id);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the object at position POS (as found by find), its bytes a
+     *  read-only slice of the mapped pack; a delta is resolved and comes
+     *  back as the raw contents of the blob. */
+    StoredObject read(int pos) {
+        if (!isDelta(pos)) {
+            return new StoredObject(entry(pos));
+        }
+        return new StoredObject(resolve(pos, 0));
+    }
+
+    /** Returns true if the object at position POS is stored as a delta. */
+    boolean isDelta(int pos) {
+        mapData();
+        return data.get((int) offsetAt(pos)) == DELTA;
+    }
+
+    /** Returns the number of deltas between the object at position POS and
+     *  a blob stored whole. */
+    int depth(int pos) {
+        int depth = 0;
+
+        while (isDelta(pos)) {
+            pos = find(bytesToHex(baseId(pos), 0, ID_LENGTH));
+            depth += 1;
+        }
+        return depth;
+    }
+
+    /** Returns the length of the contents of the blob at position POS. */
+    long length(int pos) {
+        ByteBuffer entry = entry(pos);
+
+        if (!isDelta(pos)) {
+            return inflatedLength(entry);
+        }
+        return Delta.resultLength(ByteBuffer.wrap(inflate(entry.position(ID_LENGTH))));
+    }
+
+    /** Returns the slice of the mapped pack holding the entry at POS. */
+    private ByteBuffer entry(int pos) {
+        int offset;
+
+        mapData();
+        offset = (int) offsetAt(pos);
+        return data.duplicate().position(offset + 5)
+                .limit(offset + 5 + data.getInt(offset + 1)).slice();
+    }
+
+    private byte[] baseId(int pos) {
+        byte[] id = new byte[ID_LENGTH];
+        entry(pos).get(id);
+        return id;
+    }
+
+    /** Returns the uncompressed contents of the blob at position POS,
+     *  found DEPTH deltas away from the blob first asked for.  The result
+     *  must not be modified, it may be shared through the cache. */
+    private synchronized byte[] resolve(int pos, int depth) {
+        ByteBuffer entry = entry(pos);
+        byte[] result = resolved.get(pos);
+        int basePos;
+
+        if (result != null) {
+            return result;
+        }
+        if (!isDelta(pos)) {
+            result = inflate(entry);
+        } else {
+            basePos = find(bytesToHex(baseId(pos), 0, ID_LENGTH));
+            if (basePos < 0 || depth >= MAX_DEPTH) {
+                throw new IllegalArgumentException("broken delta chain in "
+                        + packFile.getName());
+            }
+            result = Delta.apply(resolve(basePos, depth + 1),
+                    ByteBuffer.wrap(inflate(entry.position(ID_LENGTH))));
+        }
+
+        if (result.length <= BASE_CACHE / 4) {
+            resolved.put(pos, result);
+            resolvedBytes += result.length;
+            Iterator<byte[]> it = resolved.values().iterator();
+            while (resolvedBytes > BASE_CACHE) {
+                resolvedBytes -= it.next().length;
+                it.remove();
+            }
+        }
+        return result;
+    }
+
+    /** Returns the ids of all objects of type TYPE in this pack, sorted. */
+    List<String> list(byte type) {
+        List<String> result = new ArrayList<>();
+
+        loadIndex();
+        for (int i = 0; i < count; i += 1) {
+            if (typeAt(i) == type) {
+                result.add(idAt(i));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the type of the object at position POS of the id table. */
+    byte typeAt(int pos) {
+        loadIndex();
+        return index.get(IDX_HEADER + count * ID_LENGTH + pos);
+    }
+
+    /** Returns the id of the object at position POS of the id table. */
+    String idAt(int pos) {
+        byte[] id = new byte[ID_LENGTH];
+
+        loadIndex();
+        index.get(IDX_HEADER + pos * ID_LENGTH, id);
+        return bytesToHex(id, 0, ID_LENGTH);
+    }
+
+    /** Returns the number of objects in this pack. */
+    int size() {
+        loadIndex();
+        return count;
+    }
+
+    /** Removes both files of this pack.  Slices already handed out stay
+     *  valid until they are garbage collected. */
+    void delete() {
+        index = null;
+        data = null;
+        packFile.delete();
+        idxFile.delete();
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    // both mappings are set up under the lock so that readers on other
+    // threads never see a half initialized pack; later reads are absolute
+    // and never move the shared buffers
+    private synchronized void loadIndex() {
+        if (index == null) {
+            index = mapContents(idxFile);
+            count = index.getInt(8);
+        }
+    }
+
+    private synchronized void mapData() {
+        if (data == null) {
+            data = mapContents(packFile);
+        }
+    }
+
+    private int fanoutAt(int i) {
+        return index.getInt(12 + i * 4);
+    }
+
+    private long offsetAt(int pos) {
+        return index.getLong(IDX_HEADER + count * (ID_LENGTH + 1) + pos * 8);
+    }
+
+    /** Compares the id at position POS with the raw id ID as unsigned bytes. */
+    private int compareId(int pos, byte[] id) {
+        int base = IDX_HEADER + pos * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i += 1) {
+            int cmp = (index.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+}
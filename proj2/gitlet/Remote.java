@@ -0,0 +1,662 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Represents remotes: other repositories on the same machine that fetch
+ *  and push exchange commits with.
+ *
+ *  .gitlet/remotes lists the remotes, one "name TAB path" line each, the
+ *  path leading to the .gitlet folder of the other repository.
+ *
+ *  fetch and push talk to a gitlet process run in the other repository:
+ *  its daemon if one is serving it (see Daemon), or else a process started
+ *  for the one exchange, "gitlet upload-pack" for fetch and "gitlet
+ *  receive-pack" for push, over its standard input and output.  The other
+ *  side opens with "GLT1" and its branches; anything else is an error
+ *  message.
+ *
+ *  fetch negotiates what to send.  The client names the commit it wants,
+ *  then sends the commits it has, newest first, in rounds of BATCH; the
+ *  server acknowledges those it has too, and the client stops walking
+ *  past them, since what they reach is common.  The server then walks its
+ *  commit-graph down from the wanted commit, stopping where the history
+ *  becomes common, and streams the commits it found with the trees and
+ *  blobs they changed as a single pack (see PackFile.send).  Both walks
+ *  only look at the new history and its border, never at the rest.
+ *
+ *  A fetch can ask for only the last commits of the history (clone
+ *  --depth): the server then walks that many commits down, breadth first,
+ *  names the commits whose parents it left out, which become shallow here
+ *  (see Shallow), and sends those with their whole tree.  It can also leave
+ *  the blobs out (clone --blobless): the remote is then recorded in
+ *  .gitlet/promisor, and the blobs are fetched from it when first read,
+ *  "gitlet upload-blobs" sending a pack of the blobs asked for.
+ *
+ *  push needs no negotiation: the branches the server announces are the
+ *  common history, provided the client has them.  The client streams the
+ *  pack, and the server moves the branch if it still points where the
+ *  client saw it, compare-and-swap style.
+ *  @author Hoho
+ */
+class Remote {
+
+    /** the list of remotes */
+    static final File REMOTES_FILE = join(Repository.GITLET_DIR, "remotes");
+
+    /** names the remote a partial clone fetches its missing blobs from */
+    static final File PROMISOR_FILE = join(Repository.GITLET_DIR, "promisor");
+
+    /** what the serving side opens with */
+    private static final String MAGIC = "GLT1";
+
+    /** commits the client offers in one round of negotiation */
+    private static final int BATCH = 32;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /* THE LIST OF REMOTES */
+
+    /** adds the remote NAME, the repository whose .gitlet folder is PATH */
+    static void add(String name, String path) {
+        IndexLock.run(() -> {
+            TreeMap<String, String> remotes = readRemotes();
+            if (remotes.containsKey(name)) {
+                eventMessageHandler("A remote with that name already exists.", true);
+            }
+            remotes.put(name, path);
+            writeRemotes(remotes);
+        });
+    }
+
+    /** removes the remote NAME */
+    static void remove(String name) {
+        IndexLock.run(() -> {
+            TreeMap<String, String> remotes = readRemotes();
+            if (remotes.remove(name) == null) {
+                eventMessageHandler("A remote with that name does not exist.", true);
+            }
+            writeRemotes(remotes);
+        });
+    }
+
+    private static TreeMap<String, String> readRemotes() {
+        TreeMap<String, String> result = new TreeMap<>();
+        int tab;
+
+        if (!REMOTES_FILE.isFile()) {
+            return result;
+        }
+        for (String line : readContentsAsString(REMOTES_FILE).split("\n")) {
+            tab = line.indexOf('\t');
+            if (tab > 0) {
+                result.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+        return result;
+    }
+
+    private static void writeRemotes(TreeMap<String, String> remotes) {
+        StringBuilder contents = new StringBuilder();
+        File tmp = join(Repository.GITLET_DIR, "remotes.tmp");
+
+        for (Map.Entry<String, String> entry : remotes.entrySet()) {
+            contents.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        writeContents(tmp, contents.toString());
+        PackFile.move(tmp, REMOTES_FILE);
+    }
+
+    /** returns the .gitlet folder of the remote NAME; aborts if there is no
+     *  such remote or the folder is gone */
+    private static File locate(String name) {
+        String path = readRemotes().get(name);
+        File dir;
+
+        if (path == null) {
+            eventMessageHandler("A remote with that name does not exist.", true);
+        }
+        dir = new File(path.replace("/", File.separator));
+        if (!dir.isAbsolute()) {
+            dir = join(Repository.CWD, dir.getPath());
+        }
+        if (!dir.isDirectory()) {
+            eventMessageHandler("Remote directory not found.", true);
+        }
+        return dir;
+    }
+
+    /** makes the remote NAME the one missing blobs are fetched from */
+    static void promise(String name) {
+        writeContents(PROMISOR_FILE, name + "\n");
+    }
+
+    /** returns the remote missing blobs are fetched from, or null if this
+     *  is not a partial clone */
+    static String promisor() {
+        if (!PROMISOR_FILE.isFile()) {
+            return null;
+        }
+        return readContentsAsString(PROMISOR_FILE).trim();
+    }
+
+    /* THE CLIENT SIDE */
+
+    /** copies the branch BRANCH of the remote NAME, and the history it
+     *  needs, into the branch NAME/BRANCH; the blobs are left out if NAME
+     *  is the promisor remote */
+    static void fetch(String name, String branch) {
+        fetch(name, branch, 0, !name.equals(promisor()));
+    }
+
+    /** copies the branch BRANCH of the remote NAME into NAME/BRANCH, only
+     *  the last DEPTH commits of its history unless DEPTH is 0, and the
+     *  blobs only if BLOBS is set; returns the commit fetched */
+    static String fetch(String name, String branch, int depth, boolean blobs) {
+        List<String> commits = new ArrayList<>();
+        String hash;
+
+        try (Connection conn = new Connection(locate(name), "upload-pack")) {
+            hash = conn.refs.get(branch);
+            if (hash == null || CommitGraph.position(hash) >= 0) {
+                // nothing wanted, the server stops here
+                conn.out.writeInt(0);
+                conn.out.flush();
+                if (hash == null) {
+                    eventMessageHandler("That remote does not have that branch.", true);
+                }
+            } else {
+                conn.out.writeInt(1);
+                conn.out.write(hexToBytes(hash));
+                conn.out.writeInt(depth);
+                conn.out.writeBoolean(blobs);
+                negotiate(conn);
+                // recorded before the commits, which are indexed without
+                // the parents they left behind
+                Shallow.addAll(readIds(conn.in));
+                PackFile.receive(Repository.PACK_DIR, conn.in, commits);
+                ObjectStore.refresh(true);
+                Commit.index(commits);
+                if (CommitGraph.position(hash) < 0) {
+                    throw error("The remote did not send commit %s.", hash);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Branches.setBranch(name + "/" + branch, hash);
+        return hash;
+    }
+
+    /** fetches the blobs HASHES from the promisor remote, in one pack */
+    static synchronized void fetchBlobs(Collection<String> hashes) {
+        try (Connection conn = new Connection(locate(promisor()), "upload-blobs")) {
+            conn.out.writeInt(hashes.size());
+            for (String hash : hashes) {
+                conn.out.write(hexToBytes(hash));
+            }
+            conn.out.flush();
+            PackFile.receive(Repository.PACK_DIR, conn.in, new ArrayList<>());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ObjectStore.refresh(true);
+    }
+
+    /** offers the commits of this repository to the server of CONN, newest
+     *  first, until it knows the common history */
+    private static void negotiate(Connection conn) throws IOException {
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Remote::newestFirst);
+        HashSet<Integer> seen = new HashSet<>(), acked = new HashSet<>();
+        List<Integer> batch = new ArrayList<>();
+        int p;
+
+        for (String tip : Branches.getBranches().values()) {
+            p = CommitGraph.position(tip);
+            if (p >= 0 && seen.add(p)) {
+                queue.add(p);
+            }
+        }
+        while (!queue.isEmpty()) {
+            batch.clear();
+            while (!queue.isEmpty() && batch.size() < BATCH) {
+                batch.add(queue.poll());
+            }
+            conn.out.writeInt(batch.size());
+            for (int c : batch) {
+                conn.out.write(hexToBytes(CommitGraph.id(c)));
+            }
+            conn.out.flush();
+            for (String hash : readIds(conn.in)) {
+                acked.add(CommitGraph.position(hash));
+            }
+            // what an acknowledged commit reaches is common, not offered
+            for (int c : batch) {
+                if (acked.contains(c)) {
+                    continue;
+                }
+                for (int parent : new int[] {CommitGraph.firstParent(c),
+                                             CommitGraph.secondParent(c)}) {
+                    if (parent >= 0 && seen.add(parent)) {
+                        queue.add(parent);
+                    }
+                }
+            }
+        }
+        conn.out.writeInt(0);
+        conn.out.flush();
+    }
+
+    /** sends the head and the history the remote NAME lacks to it, and
+     *  points its branch BRANCH at the head */
+    static void push(String name, String branch) {
+        String head = Branches.getHead(), old, reply;
+        List<Integer> commons = new ArrayList<>();
+
+        try (Connection conn = new Connection(locate(name), "receive-pack")) {
+            old = conn.refs.get(branch);
+            if (old != null && (CommitGraph.position(old) < 0
+                    || !old.equals(CommitGraph.mergeBase(head, old)))) {
+                eventMessageHandler("Please pull down remote changes before pushing.", true);
+            }
+            for (String hash : conn.refs.values()) {
+                if (CommitGraph.position(hash) >= 0) {
+                    commons.add(CommitGraph.position(hash));
+                }
+            }
+            conn.out.writeUTF(branch);
+            conn.out.writeUTF(old == null ? "" : old);
+            conn.out.writeUTF(head);
+            PackFile.send(conn.out, objectsOf(CommitGraph.range(
+                    Collections.singletonList(CommitGraph.position(head)), commons),
+                    Collections.emptyList(), true));
+            conn.out.flush();
+            reply = conn.in.readUTF();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (!reply.isEmpty()) {
+            eventMessageHandler(reply, true);
+        }
+    }
+
+    /** Represents one exchange with the gitlet process serving a remote. */
+    private static class Connection implements Closeable {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        /** the branches of the remote, as announced */
+        private final Map<String, String> refs;
+        private Process process;
+        private Socket socket;
+
+        /** runs COMMAND in the repository whose .gitlet folder is GITLET,
+         *  on its daemon if it has one */
+        Connection(File gitlet, String command) throws IOException {
+            InputStream rawIn;
+            OutputStream rawOut;
+            byte[] magic;
+
+            socket = Client.connect(gitlet);
+            if (socket != null) {
+                rawIn = socket.getInputStream();
+                rawOut = socket.getOutputStream();
+            } else {
+                process = new ProcessBuilder(
+                        ProcessHandle.current().info().command().orElse("java"),
+                        "-cp", classPath(), "gitlet.Main", command)
+                        .directory(gitlet.getAbsoluteFile().getParentFile())
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                rawIn = process.getInputStream();
+                rawOut = process.getOutputStream();
+            }
+            in = new DataInputStream(new BufferedInputStream(rawIn));
+            out = new DataOutputStream(new BufferedOutputStream(rawOut));
+            if (socket != null) {
+                out.writeInt(1);
+                out.writeUTF(command);
+                out.flush();
+            }
+
+            // anything but the magic is the message of a failure
+            magic = in.readNBytes(MAGIC.length());
+            if (!Arrays.equals(magic, MAGIC.getBytes(StandardCharsets.US_ASCII))) {
+                String msg = new String(magic, StandardCharsets.UTF_8)
+                        + new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                close();
+                eventMessageHandler(msg.isBlank() ? "Remote directory not found." : msg.trim(),
+                        true);
+            }
+            refs = readRefs(in);
+        }
+
+        /** returns the class path of this process, made absolute, since the
+         *  other one runs in another folder */
+        private static String classPath() {
+            StringBuilder result = new StringBuilder();
+
+            for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+                if (result.length() > 0) {
+                    result.append(File.pathSeparator);
+                }
+                result.append(new File(entry).getAbsolutePath());
+            }
+            return result.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+                in.close();
+                if (process != null) {
+                    process.waitFor();
+                }
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    /* THE SERVING SIDE */
+
+    /** serves a fetch over the standard input and output */
+    static void uploadPack() {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        List<Integer> wants = new ArrayList<>(), commons = new ArrayList<>();
+        List<String> haves, acks = new ArrayList<>(), shallow = new ArrayList<>();
+        List<Integer> missing;
+        boolean blobs;
+        int n, depth;
+
+        try {
+            out.writeBytes(MAGIC);
+            writeRefs(out, Branches.getBranches());
+            out.flush();
+            n = in.readInt();
+            if (n == 0) {
+                return;
+            }
+            for (String hash : readIds(in, n)) {
+                if (CommitGraph.position(hash) >= 0) {
+                    wants.add(CommitGraph.position(hash));
+                }
+            }
+            depth = in.readInt();
+            blobs = in.readBoolean();
+            while (!(haves = readIds(in)).isEmpty()) {
+                acks.clear();
+                for (String hash : haves) {
+                    if (CommitGraph.position(hash) >= 0) {
+                        commons.add(CommitGraph.position(hash));
+                        acks.add(hash);
+                    }
+                }
+                out.writeInt(acks.size());
+                for (String hash : acks) {
+                    out.write(hexToBytes(hash));
+                }
+                out.flush();
+            }
+            missing = depth > 0 ? missingWithin(wants, commons, depth, shallow)
+                                : CommitGraph.range(wants, commons);
+            // commits shallow here are shallow on the other side too
+            for (int m : missing) {
+                if (Shallow.contains(CommitGraph.id(m)) && !shallow.contains(CommitGraph.id(m))) {
+                    shallow.add(CommitGraph.id(m));
+                }
+            }
+            out.writeInt(shallow.size());
+            for (String hash : shallow) {
+                out.write(hexToBytes(hash));
+            }
+            PackFile.send(out, objectsOf(missing, shallow, blobs));
+            out.flush();
+        } catch (EOFException excp) {
+            // the client gave up
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** serves the blobs a partial clone asks for over the standard input
+     *  and output, with all the chunks of those chunked, leaving out those
+     *  this repository cannot find */
+    static void uploadBlobs() {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        LinkedHashMap<String, Byte> blobs = new LinkedHashMap<>(), chunks = new LinkedHashMap<>();
+        List<String> hashes;
+
+        try {
+            out.writeBytes(MAGIC);
+            writeRefs(out, Branches.getBranches());
+            out.flush();
+            hashes = readIds(in);
+            // a partial clone itself fetches them from its own promisor
+            Blob.prefetch(hashes);
+            for (String hash : hashes) {
+                if (ObjectStore.contains(ObjectStore.BLOB, hash)) {
+                    blobs.put(hash, ObjectStore.BLOB);
+                    Chunks.collect(hash, null, chunks);
+                }
+            }
+            Blob.prefetch(chunks.keySet());
+            chunks.forEach(blobs::putIfAbsent);
+            PackFile.send(out, blobs);
+            out.flush();
+        } catch (EOFException excp) {
+            // the client gave up
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** serves a push over the standard input and output */
+    static void receivePack() {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        List<String> commits = new ArrayList<>();
+        String branch, old, head, reply = "";
+
+        try {
+            out.writeBytes(MAGIC);
+            writeRefs(out, Branches.getBranches());
+            out.flush();
+            branch = in.readUTF();
+            old = in.readUTF();
+            head = in.readUTF();
+            PackFile.receive(Repository.PACK_DIR, in, commits);
+            ObjectStore.refresh(true);
+            Commit.index(commits);
+            if (!Objects.equals(Branches.getBranches().get(branch), old.isEmpty() ? null : old)) {
+                reply = "Please pull down remote changes before pushing.";
+            } else {
+                try {
+                    Branches.setBranch(branch, head);
+                    State.record();
+                } catch (GitletException excp) {
+                    reply = excp.getMessage();
+                }
+            }
+            out.writeUTF(reply);
+            out.flush();
+        } catch (EOFException excp) {
+            // the client gave up
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /* SHARED BY BOTH SIDES */
+
+    /**
+     * returns, parents first, the graph positions of the commits at most
+     * DEPTH steps down from those at WANTS (counting them as one), not
+     * going past those at COMMONS; adds to SHALLOW the ids of the commits
+     * returned whose parents were not
+     *
+     * The walk is breadth first, so a commit is reached by its shortest
+     * path, and all those within DEPTH are known before the last ones are
+     * looked at.
+     */
+    private static List<Integer> missingWithin(Collection<Integer> wants,
+                                               Collection<Integer> commons, int depth,
+                                               List<String> shallow) {
+        HashSet<Integer> common = new HashSet<>(commons);
+        HashMap<Integer, Integer> distance = new HashMap<>();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        List<Integer> missing;
+        int c, d;
+
+        for (int w : wants) {
+            if (!common.contains(w) && distance.putIfAbsent(w, 1) == null) {
+                queue.add(w);
+            }
+        }
+        while (!queue.isEmpty()) {
+            c = queue.poll();
+            d = distance.get(c);
+            for (int p : new int[] {CommitGraph.firstParent(c), CommitGraph.secondParent(c)}) {
+                if (p < 0 || common.contains(p)) {
+                    continue;
+                }
+                if (d < depth) {
+                    if (distance.putIfAbsent(p, d + 1) == null) {
+                        queue.add(p);
+                    }
+                } else if (!distance.containsKey(p) && !shallow.contains(CommitGraph.id(c))) {
+                    shallow.add(CommitGraph.id(c));
+                }
+            }
+        }
+        missing = new ArrayList<>(distance.keySet());
+        missing.sort((a, b) -> newestFirst(b, a));
+        return missing;
+    }
+
+    /**
+     * returns the objects to send for the commits at the graph positions
+     * MISSING, parents first: each commit after the trees and blobs it
+     * changed from its first parent, or all of them for the commits in
+     * SHALLOW, whose parents the other side will not have; the blobs are
+     * left out unless BLOBS is set.  A chunked blob brings the chunks the
+     * blob it replaced did not have (see Chunks).
+     */
+    private static LinkedHashMap<String, Byte> objectsOf(List<Integer> missing,
+                                                         Collection<String> shallow,
+                                                         boolean blobs) {
+        LinkedHashMap<String, Byte> result = new LinkedHashMap<>(), chunks;
+        HashMap<String, String> bases = new HashMap<>();
+        HashSet<String> cut = new HashSet<>(shallow);
+        List<String> ids = new ArrayList<>();
+        String hash;
+        int parent;
+
+        for (int m : missing) {
+            hash = CommitGraph.id(m);
+            parent = CommitGraph.firstParent(m);
+            Tree.collectChanged(CommitGraph.tree(m),
+                    parent < 0 || cut.contains(hash) ? null : CommitGraph.tree(parent),
+                    result, bases);
+            result.put(hash, ObjectStore.COMMIT);
+        }
+        if (!blobs) {
+            result.values().removeIf(type -> type == ObjectStore.BLOB);
+            return result;
+        }
+
+        // a partial clone first fetches those it lacks itself
+        for (Map.Entry<String, Byte> entry : result.entrySet()) {
+            if (entry.getValue() == ObjectStore.BLOB) {
+                ids.add(entry.getKey());
+            }
+        }
+        Blob.prefetch(ids);
+        chunks = new LinkedHashMap<>();
+        for (String blob : ids) {
+            Chunks.collect(blob, bases.get(blob), chunks);
+        }
+        Blob.prefetch(chunks.keySet());
+        chunks.forEach(result::putIfAbsent);
+        return result;
+    }
+
+    /** orders graph positions by generation, then position, highest first */
+    private static int newestFirst(int a, int b) {
+        int ga = CommitGraph.generation(a), gb = CommitGraph.generation(b);
+
+        return ga != gb ? Integer.compare(gb, ga) : Integer.compare(b, a);
+    }
+
+    private static void writeRefs(DataOutputStream out, Map<String, String> refs)
+        throws IOException {
+        out.writeInt(refs.size());
+        for (Map.Entry<String, String> entry : refs.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.write(hexToBytes(entry.getValue()));
+        }
+    }
+
+    private static Map<String, String> readRefs(DataInputStream in) throws IOException {
+        TreeMap<String, String> result = new TreeMap<>();
+        byte[] id = new byte[ID_LENGTH];
+        String name;
+        int n = in.readInt();
+
+        for (int i = 0; i < n; i += 1) {
+            name = in.readUTF();
+            in.readFully(id);
+            result.put(name, bytesToHex(id, 0, ID_LENGTH));
+        }
+        return result;
+    }
+
+    /** reads a count and as many raw ids */
+    private static List<String> readIds(DataInputStream in) throws IOException {
+        return readIds(in, in.readInt());
+    }
+
+    private static List<String> readIds(DataInputStream in, int n) throws IOException {
+        List<String> result = new ArrayList<>(n);
+        byte[] id = new byte[ID_LENGTH];
+
+        for (int i = 0; i < n; i += 1) {
+            in.readFully(id);
+            result.add(bytesToHex(id, 0, ID_LENGTH));
+        }
+        return result;
+    }
+
+}
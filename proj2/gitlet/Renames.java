@@ -0,0 +1,177 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** Represents rename detection, which pairs files that disappeared with
+ *  files that appeared holding the same or similar contents.
+ *
+ *  Identical contents are paired first, through a map from blob id to
+ *  path.  The rest are compared by fingerprint (see Fingerprints), but
+ *  never every source against every target: each signature is cut into
+ *  BANDS bands of ROWS slots, and the (band, hash of the band) keys of
+ *  all files are sorted, so files sharing a key end up next to each
+ *  other.  Only those are compared, which makes the detection cost
+ *  O(n log n) in the number of files.  A pair whose estimated similarity
+ *  reaches THRESHOLD is a rename, the most similar pairs first.
+ *  @author Hoho
+ */
+class Renames {
+
+    /** Least similarity of a rename, git's default of 50%. */
+    static final double THRESHOLD = 0.5;
+
+    /** Slots of the signature in one band. */
+    private static final int ROWS = 3;
+
+    /** Bands the signature is cut into. */
+    private static final int BANDS = Fingerprints.SIZE / ROWS;
+
+    /** Files sharing a key beyond which the key is too common to mean
+     *  anything, like the signature of a one-line file everyone has. */
+    private static final int MAX_BUCKET = 64;
+
+    /** Returns the renames from the tree SPLIT to the tree SIDE that a
+     *  merge with the tree OTHER has to follow, as old path to new path:
+     *  files SIDE renamed, to a path OTHER does not have, and OTHER
+     *  modified. */
+    static TreeMap<String, String> find(String split, String side, String other) {
+        TreeMap<String, String> removed = new TreeMap<>(), added = new TreeMap<>();
+        TreeMap<String, String> sources = new TreeMap<>(), modified, renames;
+
+        Tree.diff(split, side, removed, added);
+        if (removed.isEmpty() || added.isEmpty()) {
+            return new TreeMap<>();
+        }
+        modified = Tree.lookupAll(other, removed.keySet());
+        for (Map.Entry<String, String> entry : removed.entrySet()) {
+            if (modified.containsKey(entry.getKey())
+                    && !modified.get(entry.getKey()).equals(entry.getValue())) {
+                sources.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (sources.isEmpty()) {
+            return new TreeMap<>();
+        }
+        added.keySet().removeAll(Tree.lookupAll(other, added.keySet()).keySet());
+        renames = match(sources, added);
+        Fingerprints.save();
+        return renames;
+    }
+
+    /** Returns the pairs of a file of SOURCES and a file of TARGETS (both
+     *  maps from path to blob id) holding similar contents, as source path
+     *  to target path; every file is in at most one pair. */
+    static TreeMap<String, String> match(Map<String, String> sources,
+                                         Map<String, String> targets) {
+        TreeMap<String, String> result = new TreeMap<>();
+        Map<String, String> exact = new HashMap<>();
+        Set<String> taken = new HashSet<>();
+        List<String> paths = new ArrayList<>();
+        List<int[]> signatures = new ArrayList<>();
+        List<double[]> pairs = new ArrayList<>();
+        int nSources;
+
+        // identical contents first
+        for (Map.Entry<String, String> entry : new TreeMap<>(sources).entrySet()) {
+            exact.putIfAbsent(entry.getValue(), entry.getKey());
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<>(targets).entrySet()) {
+            String source = exact.remove(entry.getValue());
+            if (source != null) {
+                result.put(source, entry.getKey());
+                taken.add(entry.getKey());
+            }
+        }
+
+        // then the signatures of what is left, sources before targets;
+        // empty files have nothing to compare
+        for (String path : new TreeMap<>(sources).keySet()) {
+            addSignature(path, sources.get(path), !result.containsKey(path), paths, signatures);
+        }
+        nSources = paths.size();
+        for (String path : new TreeMap<>(targets).keySet()) {
+            addSignature(path, targets.get(path), !taken.contains(path), paths, signatures);
+        }
+        for (long pair : candidates(signatures, nSources)) {
+            int s = (int) (pair >>> 32), t = (int) pair;
+            double similarity = Fingerprints.similarity(signatures.get(s), signatures.get(t));
+            if (similarity >= THRESHOLD) {
+                pairs.add(new double[] {similarity, s, t});
+            }
+        }
+
+        // the most similar pairs first, ties broken by path order
+        pairs.sort((a, b) -> a[0] != b[0] ? Double.compare(b[0], a[0])
+                : a[1] != b[1] ? Double.compare(a[1], b[1]) : Double.compare(a[2], b[2]));
+        for (double[] pair : pairs) {
+            String source = paths.get((int) pair[1]), target = paths.get((int) pair[2]);
+            if (!result.containsKey(source) && !taken.contains(target)) {
+                result.put(source, target);
+                taken.add(target);
+            }
+        }
+        return result;
+    }
+
+    private static void addSignature(String path, String blob, boolean wanted,
+                                     List<String> paths, List<int[]> signatures) {
+        int[] signature;
+
+        if (!wanted) {
+            return;
+        }
+        signature = Fingerprints.of(blob);
+        if (signature[0] != Integer.MAX_VALUE) {
+            paths.add(path);
+            signatures.add(signature);
+        }
+    }
+
+    /** Returns the (source, target) index pairs sharing a band key, each
+     *  as source << 32 | target; indices below NSOURCES are sources. */
+    private static Set<Long> candidates(List<int[]> signatures, int nSources) {
+        Set<Long> result = new HashSet<>();
+        long[] keys = new long[signatures.size() * BANDS];
+        int n = 0, h, end;
+
+        if (nSources == 0 || nSources == signatures.size()) {
+            return result;
+        }
+        for (int i = 0; i < signatures.size(); i += 1) {
+            for (int b = 0; b < BANDS; b += 1) {
+                h = b;
+                for (int r = 0; r < ROWS; r += 1) {
+                    h = h * 0x01000193 ^ signatures.get(i)[b * ROWS + r];
+                }
+                keys[n++] = (long) h << 32 | i;
+            }
+        }
+        Arrays.sort(keys);
+        for (int start = 0; start < n; start = end) {
+            end = start + 1;
+            while (end < n && keys[end] >>> 32 == keys[start] >>> 32) {
+                end += 1;
+            }
+            if (end - start > MAX_BUCKET) {
+                continue;
+            }
+            for (int i = start; i < end; i += 1) {
+                for (int j = start; j < end; j += 1) {
+                    int s = (int) keys[i], t = (int) keys[j];
+                    if (s < nSources && t >= nSources) {
+                        result.add((long) s << 32 | t);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+}
@@ -25,12 +25,15 @@ public class Repository {
     /** Folder that commit files live in. */
     public static final File COMMIT_DIR = join(GITLET_DIR, "commits");
 
-    /** Folder that references live in. */
-    public static final File REF_DIR = join(GITLET_DIR, "refs");
-
     /** Folder that blobs live in. */
     public static final File BLOB_DIR = join(GITLET_DIR, "blobs");
 
+    /** Folder that trees live in. */
+    public static final File TREE_DIR = join(GITLET_DIR, "trees");
+
+    /** Folder that packfiles live in. */
+    public static final File PACK_DIR = join(GITLET_DIR, "packs");
+
 
     /* FUNCTIONS */
 
@@ -41,6 +44,14 @@ public class Repository {
      * .gitlet/ -- top level folder for all persistent data in your lab12 folder
      *    - blobs/ -- folder containing all of the persistent data for dogs
      *    - commits/ -- file containing the current story
+     *    - trees/ -- directory listings shared between commits
+     *    - packs/ -- packfiles holding commits and blobs folded by repack
+     *    - state -- head, branches and staging area, see State
+     *    - remotes -- the repositories fetch and push talk to, see Remote
+     *    - shallow -- the commits of a shallow clone left without parents, see Shallow
+     *    - promisor -- the remote a blobless clone fetches blobs from, see Remote
+     *    - bisect -- the bisection in progress, see Bisect
+     *    - blame/ -- the origins of the lines of the files blamed, see Blame
      */
     public static void setupPersistence() {
         /* create .gitlet/ */
@@ -51,14 +62,17 @@ public class Repository {
         if (!COMMIT_DIR.exists()) {
             COMMIT_DIR.mkdir();
         }
-        // ref folders include information about head, master, etc.
-        if (!REF_DIR.exists()) {
-            REF_DIR.mkdir();
-        }
-
         if (!BLOB_DIR.exists()) {
             BLOB_DIR.mkdir();
         }
+
+        if (!TREE_DIR.exists()) {
+            TREE_DIR.mkdir();
+        }
+
+        if (!PACK_DIR.exists()) {
+            PACK_DIR.mkdir();
+        }
     }
 
     public static void init() {
@@ -67,7 +81,6 @@ public class Repository {
 
         validateNewRepo();
         setupPersistence();
-        StagingArea.load();
 
         // datetime
         epochDate = new Date(0L);
@@ -87,20 +100,37 @@ public class Repository {
         if (!GITLET_DIR.exists()) {
             eventMessageHandler("Not in an initialized Gitlet directory.", true);
         }
-
-        Branches.load();
-        StagingArea.load();
+        // the state itself is read on first use, by State.load()
     }
 
     private static void record() {
-        Branches.record();
-        StagingArea.record();
+        State.record();
+        StatCache.save();
+    }
+
+    /**
+     * forgets the state, indexes and pack list read by earlier commands
+     * whose files changed since, or all of them if DISCARD is set; the
+     * daemon calls this before every command, and with DISCARD after a
+     * command that failed half way and left them changed but not recorded
+     */
+    static void refresh(boolean discard) {
+        State.refresh(discard);
+        StatCache.refresh(discard);
+        CommitGraph.refresh(discard);
+        CommitIndex.refresh(discard);
+        Shallow.refresh(discard);
+        ObjectStore.refresh(discard);
     }
 
     public static void add(String filename) {
         load();
-        StagingArea.add(filename);
-        record();
+        // the blob is written and staged under the lock, so gc never finds
+        // it unreachable in between
+        IndexLock.run(() -> {
+            StagingArea.add(filename);
+            record();
+        });
     }
 
     public static void rm(String filename) {
@@ -116,80 +146,91 @@ public class Repository {
      */
     public static void commit(String msg, String mergeID) {
         Date now = new Date();
-        Commit c;
 
         load();
-        if (StagingArea.getStagedForAddition().isEmpty()
-                && StagingArea.getStagedForRemoval().isEmpty()) {
-            eventMessageHandler("No changes added to the commit.", true);
-        }
+        // nothing is written before the head is known to be ours
+        State.moveHead(() -> {
+            Commit c;
 
-        if (msg == null || msg.equals("")) {
-            eventMessageHandler("Please enter a commit message.", true);
-        }
+            if (StagingArea.getStagedForAddition().isEmpty()
+                    && StagingArea.getStagedForRemoval().isEmpty()) {
+                eventMessageHandler("No changes added to the commit.", true);
+            }
+
+            if (msg == null || msg.equals("")) {
+                eventMessageHandler("Please enter a commit message.", true);
+            }
 
-        c = new Commit(msg, now, Branches.getHead(), mergeID);
+            c = new Commit(msg, now, Branches.getHead(), mergeID);
 
-        // set head pointer
-        Branches.updateHead(c.getHash());
+            // set head pointer
+            Branches.updateHead(c.getHash());
 
-        StagingArea.clear();
+            StagingArea.clear();
+        });
         record();
+
+        // a bounded slice of garbage collection, once the commit is safe
+        GarbageCollector.step();
     }
 
-    public static void log() {
-        String ptrCommit;
-        Commit c;
+    /**
+     * prints the first-parent history of the head, at most LIMIT commits,
+     * none older than SINCE (in milliseconds), and only those changing
+     * PATH unless it is null
+     */
+    public static void log(int limit, long since, String path) {
+        History history;
 
         load();
 
-        ptrCommit = Branches.getHead();
-        while (ptrCommit != null) {
-            c = Commit.getCommitFromHash(ptrCommit);
-            c.printCommit();
+        // commits are only decoded as they are printed
+        history = new History(Branches.getHead(), limit, since, path);
+        while (history.hasNext()) {
+            history.next().printCommit();
             System.out.println();
-            ptrCommit = c.getParentHash();
         }
 
         // no need to record()
     }
 
     public static void globallog() {
-        String [] fileList;
+        List<String> fileList;
 
         load();
 
         // TO DO: review after getting clear about the order and branches
-        fileList = Repository.COMMIT_DIR.list();
-        Arrays.sort(fileList);
+        fileList = CommitIndex.all();
 
-        for (String hash : fileList) {
-            Commit.getCommitFromHash(hash).printCommit();
+        // decoded in parallel, printed in the sorted order of the hashes
+        for (Commit c : Commit.decodeAll(fileList, c -> c)) {
+            c.printCommit();
             System.out.println();
         }
 
         // no need to record()
     }
 
+    // prints the lines of a file with the commits that brought them in, see Blame
+    public static void blame(String path) {
+        load();
+        Blame.blame(path);
+        // no need to record(), the cache is written by Blame
+    }
+
     public static void find(String msg) {
-        String [] fileList;
-        Commit c;
-        boolean found = false;
+        List<String> fileList;
 
         load();
 
-        fileList = Repository.COMMIT_DIR.list();
-        Arrays.sort(fileList);
+        // answered from the message index, no commit is decoded
+        fileList = MessageIndex.find(msg);
 
         for (String hash : fileList) {
-            c = Commit.getCommitFromHash(hash);
-            if (c.getMessage().equals(msg)) {
-                System.out.println(hash);
-                found = true;
-            }
+            System.out.println(hash);
         }
 
-        if (!found) {
+        if (fileList.isEmpty()) {
             eventMessageHandler("Found no commit with that message.", false);
         }
 
@@ -210,7 +251,7 @@ public class Repository {
 
     public static void checkoutFile(String filename, String commitID) {
         Commit c;
-        TreeMap<String, String> mapping;
+        String blobHash;
         Blob b;
         File file;
 
@@ -226,12 +267,13 @@ public class Repository {
             }
         }
 
-        mapping = c.getMapping();
-        if (mapping.containsKey(filename)) {
+        blobHash = c.getFileHash(filename);
+        if (blobHash != null) {
             // Takes the version of the file in the head commit and puts it in the working directory
             file = createFilePath(Repository.CWD, filename, false);
-            b = Blob.getBlobFromHash(mapping.get(filename));
-            writeContents(file, b.getContents());
+            b = Blob.getBlobFromHash(blobHash);
+            b.writeTo(file);
+            StatCache.update(filename, blobHash);
         } else {
             eventMessageHandler("File does not exist in that commit.", true);
         }
@@ -242,14 +284,39 @@ public class Repository {
     //  no way to be in a detached head state using checkout
     public static void checkoutBranch(String branch) {
         load();
-        Branches.checkout(branch);
+        State.moveHead(() -> Branches.checkout(branch));
         record();
     }
 
     // also moves the branch pointer
     public static void reset(String commitID) {
         load();
-        Branches.reset(commitID);
+        State.moveHead(() -> Branches.reset(commitID));
+        record();
+    }
+
+    // binary search for the commit that broke something, see Bisect
+    public static void bisectStart(String bad, List<String> goods) {
+        load();
+        State.moveHead(() -> Bisect.start(bad, goods));
+        record();
+    }
+
+    public static void bisectMark(String kind, String commitID) {
+        load();
+        State.moveHead(() -> Bisect.mark(kind, commitID));
+        record();
+    }
+
+    public static void bisectReset() {
+        load();
+        State.moveHead(Bisect::reset);
+        record();
+    }
+
+    public static void bisectRun(List<String> command) {
+        load();
+        Bisect.run(command);
         record();
     }
 
@@ -274,24 +341,177 @@ public class Repository {
         }
         System.out.println();
 
-        // TO DO: extra credits
         System.out.println("=== Modifications Not Staged For Commit ===");
+        for (Map.Entry<String, String> entry : unstagedModifications().entrySet()) {
+            System.out.println(entry.getKey() + " (" + entry.getValue() + ")");
+        }
         System.out.println();
 
         System.out.println("=== Untracked Files ===");
+        for (String filename : untrackedFiles()) {
+            System.out.println(filename);
+        }
         System.out.println();
 
-        // no need to record()
+        // no need to record(), but keep the hashes computed on the way
+        StatCache.save();
+    }
+
+    /**
+     * returns the files whose working version differs from what the next
+     * commit would record, mapped to "modified" or "deleted"; only files whose
+     * stat data changed since they were last seen are hashed
+     */
+    private static TreeMap<String, String> unstagedModifications() {
+        TreeMap<String, String> result = new TreeMap<>();
+        TreeMap<String, String> tracked;
+        SortedMap<String, String> staged, removed;
+        TreeSet<String> names = new TreeSet<>();
+        String hash, expected;
+
+        tracked = Commit.getCommitFromHash(Branches.getHead()).getMapping();
+        staged = StagingArea.getStagedForAddition();
+        removed = StagingArea.getStagedForRemoval();
+        names.addAll(tracked.keySet());
+        names.addAll(staged.keySet());
+
+        for (String filename : names) {
+            if (staged.containsKey(filename)) {
+                expected = staged.get(filename);
+            } else if (!removed.containsKey(filename)) {
+                expected = tracked.get(filename);
+            } else {
+                continue;
+            }
+            hash = StatCache.hashOf(filename);
+            if (hash == null) {
+                result.put(filename, "deleted");
+            } else if (!hash.equals(expected)) {
+                result.put(filename, "modified");
+            }
+        }
+        return result;
+    }
+
+    /** returns the working files that are neither staged for addition nor
+     *  tracked (a file staged for removal and then recreated counts too) */
+    private static List<String> untrackedFiles() {
+        List<String> result = new ArrayList<>();
+        TreeMap<String, String> tracked;
+
+        tracked = Commit.getCommitFromHash(Branches.getHead()).getMapping();
+        for (String filename : plainFilenamesIn(CWD)) {
+            if (!StagingArea.getStagedForAddition().containsKey(filename)
+                    && (!tracked.containsKey(filename)
+                        || StagingArea.getStagedForRemoval().containsKey(filename))) {
+                result.add(filename);
+            }
+        }
+        return result;
     }
 
     public static void merge(String branch) {
         load();
+        State.moveHead(() -> Branches.merge(branch));
+        record();
+    }
+
+    // folds loose objects into a packfile, and the commits made since into
+    // the sorted commit index; no references change, but the lock keeps
+    // add, gc and the index appends out while files are rewritten
+    public static void repack() {
+        load();
+        setupPersistence();
+        IndexLock.run(() -> {
+            ObjectStore.repack();
+            CommitIndex.compact();
+        });
+    }
+
+    // removes every object no branch or staged file can reach, then repacks
+    public static void gc() {
+        load();
+        setupPersistence();
+        GarbageCollector.collect();
+    }
+
+    public static void addRemote(String name, String path) {
+        load();
+        Remote.add(name, path);
+    }
+
+    public static void rmRemote(String name) {
+        load();
+        Remote.remove(name);
+    }
+
+    public static void fetch(String remote, String branch) {
+        load();
+        setupPersistence();
+        Remote.fetch(remote, branch);
+        record();
+    }
+
+    /**
+     * makes the current directory a clone of the repository whose .gitlet
+     * folder is SOURCE, known as the remote origin, checked out at its
+     * master: with only the last DEPTH commits unless DEPTH is 0, and
+     * without the blobs if BLOBLESS is set, which are then fetched when
+     * first read
+     */
+    public static void clone(String source, int depth, boolean blobless) {
+        File dir = new File(source);
+        String hash;
+
+        validateNewRepo();
+        if (!(dir.isAbsolute() ? dir : join(CWD, source)).isDirectory()) {
+            eventMessageHandler("Remote directory not found.", true);
+        }
+        setupPersistence();
+        Remote.add("origin", source);
+        if (blobless) {
+            Remote.promise("origin");
+        }
+        hash = Remote.fetch("origin", "master", depth, !blobless);
+        Branches.initFrom(hash);
+        record();
+    }
+
+    public static void push(String remote, String branch) {
+        load();
+        Remote.push(remote, branch);
+        // no need to record(), the remote moved
+    }
 
-        Branches.merge(branch);
+    public static void pull(String remote, String branch) {
+        fetch(remote, branch);
+        merge(remote + "/" + branch);
+    }
 
+    // the other end of fetch and push, started by them, see Remote
+    public static void uploadPack() {
+        load();
+        Remote.uploadPack();
+    }
+
+    public static void uploadBlobs() {
+        load();
+        Remote.uploadBlobs();
+    }
+
+    public static void receivePack() {
+        load();
+        setupPersistence();
+        Remote.receivePack();
         record();
     }
 
+    // keeps serving commands from one process until stopped, see Daemon
+    public static void serve() {
+        load();
+        Daemon.serve();
+    }
+
     private static void validateNewRepo() {
         if (GITLET_DIR.exists()) {
             eventMessageHandler("A Gitlet version-control system "
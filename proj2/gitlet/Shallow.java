@@ -0,0 +1,76 @@
+package gitlet;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Represents the shallow commits of a repository cloned with --depth:
+ *  the oldest commits fetched, whose parents were left behind.
+ *
+ *  .gitlet/shallow lists their ids, one per line.  The commit-graph records
+ *  them without parents, so log stops at them, merge takes them for roots
+ *  and fetch offers them as the end of the common history.
+ *  @author Hoho
+ */
+class Shallow {
+
+    /** the list of shallow commits */
+    static final File SHALLOW_FILE = join(Repository.GITLET_DIR, "shallow");
+
+    /** the shallow commits, read on first use */
+    private static HashSet<String> ids;
+
+    /** stamp of the list as read or last written */
+    private static Object readStamp;
+
+    /** returns whether HASH is a shallow commit */
+    static synchronized boolean contains(String hash) {
+        load();
+        return ids.contains(hash);
+    }
+
+    /** records the commits HASHES as shallow */
+    static void addAll(Collection<String> hashes) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        IndexLock.run(() -> {
+            File tmp = join(Repository.GITLET_DIR, "shallow.tmp");
+            synchronized (Shallow.class) {
+                refresh(false);
+                load();
+                ids.addAll(hashes);
+                writeContents(tmp, String.join("\n", new TreeSet<>(ids)) + "\n");
+                PackFile.move(tmp, SHALLOW_FILE);
+                readStamp = stamp(SHALLOW_FILE);
+            }
+        });
+    }
+
+    /** forgets the list if DISCARD is set or the file changed since */
+    static synchronized void refresh(boolean discard) {
+        if (ids != null && (discard || !Objects.equals(readStamp, stamp(SHALLOW_FILE)))) {
+            ids = null;
+        }
+    }
+
+    private static void load() {
+        if (ids != null) {
+            return;
+        }
+        ids = new HashSet<>();
+        readStamp = stamp(SHALLOW_FILE);
+        if (SHALLOW_FILE.isFile()) {
+            for (String line : readContentsAsString(SHALLOW_FILE).split("\n")) {
+                if (!line.isEmpty()) {
+                    ids.add(line);
+                }
+            }
+        }
+    }
+
+}
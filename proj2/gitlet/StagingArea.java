@@ -1,7 +1,8 @@
 package gitlet;
 
 import java.io.File;
-import java.util.List;
+import java.util.Collections;
+import java.util.SortedMap;
 import java.util.TreeMap;
 
 import static gitlet.Utils.*;
@@ -20,39 +21,47 @@ public class StagingArea {
 
     private static TreeMap<String, String> stagedForRemoval;
 
-    public static void load() {
-        File file = join(Repository.REF_DIR, "staged_add");
-        if (file.exists()) {
-            stagedForAddition = (TreeMap<String, String>) readObject(file, TreeMap.class);
-        } else {
-            stagedForAddition = new TreeMap<>();
-        }
-        file = join(Repository.REF_DIR, "staged_rm");
-        if (file.exists()) {
-            stagedForRemoval = (TreeMap<String, String>) readObject(file, TreeMap.class);
-        } else {
-            stagedForRemoval = new TreeMap<>();
-        }
+    /** sets both halves of the staging area read from the state file */
+    static void decode(TreeMap<String, String> addition, TreeMap<String, String> removal) {
+        stagedForAddition = addition;
+        stagedForRemoval = removal;
     }
 
-    public static TreeMap<String, String> getStagedForAddition() {
-        return stagedForAddition;
+    /** returns a read-only view of the files staged for addition */
+    public static SortedMap<String, String> getStagedForAddition() {
+        State.load();
+        return Collections.unmodifiableSortedMap(stagedForAddition);
     }
 
-    public static TreeMap<String, String> getStagedForRemoval() {
-        return stagedForRemoval;
+    /** returns a read-only view of the files staged for removal */
+    public static SortedMap<String, String> getStagedForRemoval() {
+        State.load();
+        return Collections.unmodifiableSortedMap(stagedForRemoval);
     }
 
     public static void clear() {
-        stagedForAddition.clear();
-        stagedForRemoval.clear();
+        State.load();
+        if (!stagedForAddition.isEmpty() || !stagedForRemoval.isEmpty()) {
+            stagedForAddition.clear();
+            stagedForRemoval.clear();
+            State.touch();
+        }
+    }
+
+    /** stages the blob HASH, already in the store, as the new FILENAME */
+    public static void stage(String filename, String hash) {
+        State.load();
+        stagedForRemoval.remove(filename);
+        stagedForAddition.put(filename, hash);
+        State.touch();
     }
 
-    public static void record() {
-        File file = createFilePath(Repository.REF_DIR, "staged_add", false);
-        writeObject(file, stagedForAddition);
-        file = createFilePath(Repository.REF_DIR, "staged_rm", false);
-        writeObject(file, stagedForRemoval);
+    /** stages FILENAME, tracked as the blob HASH, for removal */
+    public static void stageRemoval(String filename, String hash) {
+        State.load();
+        stagedForAddition.remove(filename);
+        stagedForRemoval.put(filename, hash);
+        State.touch();
     }
 
     /**
@@ -60,64 +69,56 @@ public class StagingArea {
      * @param filename the name of the file
      */
     public static void add(String filename) {
-        List<String> filenameList = plainFilenamesIn(Repository.CWD);
+        File source = join(Repository.CWD, filename);
+        String hash, oldHash, commitedFileHash;
+        Commit c;
 
-        if (!filenameList.contains(filename)) {
+        State.load();
+        if (!source.isFile()) {
             eventMessageHandler("File does not exist.", true);
         }
 
-        String contents = readContentsAsString(join(Repository.CWD, filename));
-        String hash = sha1(contents);
-        String oldHash, commitedFileHash;
-        File file;
-        Blob b;
-        Commit c;
+        // hash the file in fixed-size chunks, it is never held in memory whole,
+        // and only if its stat data changed since it was last hashed
+        hash = StatCache.hashOf(filename);
 
         // remove mapping from stagedForRemoval
-        stagedForRemoval.remove(filename);
+        if (stagedForRemoval.containsKey(filename)) {
+            stagedForRemoval.remove(filename);
+            State.touch();
+        }
 
         // if same as current commit, remove mapping
         c = Commit.getCommitFromHash(Branches.getHead());
-        commitedFileHash = c.getMapping().get(filename);
+        commitedFileHash = c.getFileHash(filename);
         if (commitedFileHash != null
                 && commitedFileHash.equals(hash)) {
-            stagedForAddition.remove(filename);
+            if (stagedForAddition.remove(filename) != null) {
+                State.touch();
+            }
             return;
         }
 
-        if (!stagedForAddition.containsKey(filename)) {
-            // create blob from the filename
-            file = createFilePath(Repository.BLOB_DIR, hash, false);
-            b = new Blob(hash, contents);
-            writeObject(file, b);
-            // add a new mapping from filename to hash
-            stagedForAddition.put(filename, hash);
-        }
-
-        // TO DO: simply logic?
-        // if (stagedForAddition.containsKey(filename)) {
-        // compare new hash with the old hash
-        // if same do nothing
-        // if different, overwrite old blob, update the mapping
+        // already staged with the same contents, nothing to do
         oldHash = stagedForAddition.get(filename);
-        if (!oldHash.equals(hash)) {
-            file = createFilePath(Repository.BLOB_DIR, hash, false);
-            b = new Blob(hash, contents);
-            writeObject(file, b);
-            stagedForAddition.put(filename, hash);
-            // remove old blob
-            file = createFilePath(Repository.BLOB_DIR, oldHash, false);
-            b = readObject(file, Blob.class);
-            if (b.isOrphan()) { // is it necessary for the check?
-                restrictedDelete(file);
-            }
+        if (hash.equals(oldHash)) {
+            return;
         }
 
+        // stream the file into a new blob and add a mapping from filename to
+        // the hash of what was actually stored, in case the file changed
+        hash = ObjectStore.writeLoose(ObjectStore.BLOB, source);
+        stagedForAddition.put(filename, hash);
+        State.touch();
+
+        // the blob staged before may still be part of some commit, it is
+        // left for the garbage collector to find out
     }
 
     public static void rm(String filename) {
         TreeMap<String, String> commitMapping;
 
+        State.load();
         commitMapping = Commit.getCommitFromHash(Branches.getHead()).getMapping();
 
         // If the file is neither staged nor tracked by the head commit
@@ -127,12 +128,15 @@ public class StagingArea {
         }
 
         // unstage the file if it is currently staged for addition
-        stagedForAddition.remove(filename);
+        if (stagedForAddition.remove(filename) != null) {
+            State.touch();
+        }
 
         // If the file is tracked in the current commit
         // stage it for removal and remove the file from the working directory
         if (commitMapping.containsKey(filename)) {
             stagedForRemoval.put(filename, commitMapping.get(filename));
+            State.touch();
             restrictedDelete(join(Repository.CWD, filename));
         }
     }
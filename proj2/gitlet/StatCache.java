@@ -0,0 +1,206 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Represents the stat cache (the index), which remembers the size,
+ *  modification time and blob hash of working files so that a file is only
+ *  hashed again once its stat data has changed.
+ *
+ *  .gitlet/index holds "SIDX", a version and the number of entries, then
+ *  the entries sorted by name: name length, name, size, modification time
+ *  in milliseconds and the hash as 20 raw bytes.
+ *
+ *  A file modified in the same instant the index was written could change
+ *  again without its stat data changing, so, as in git, an entry is only
+ *  trusted if the file is older than the index file itself.  That alone
+ *  would not do once a later write makes the index newer, so entries of
+ *  files as new as the index being written are smudged: they are written
+ *  with a size of -1, which no file has, and hashed again on next use.
+ *  @author Hoho
+ */
+public class StatCache {
+
+    /** version of the file format */
+    private static final int VERSION = 1;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** the index file */
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "index");
+
+    /** cached entries by filename: size, modification time and hash */
+    private static TreeMap<String, Entry> entries;
+
+    /** modification time of the index file when it was loaded */
+    private static long indexTime;
+
+    /** whether entries differ from the index file */
+    private static boolean dirty;
+
+    /** stamp of the index file as read or last written */
+    private static Object readStamp;
+
+    /** the stat data and hash of one working file */
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final String hash;
+
+        Entry(long size, long mtime, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+    }
+
+    private static void load() {
+        ByteBuffer buf;
+        byte[] name, id = new byte[ID_LENGTH];
+        int n;
+
+        if (entries != null) {
+            return;
+        }
+        entries = new TreeMap<>();
+        dirty = false;
+        readStamp = stamp(INDEX_FILE);
+        if (!INDEX_FILE.isFile()) {
+            indexTime = 0;
+            return;
+        }
+        indexTime = INDEX_FILE.lastModified();
+        buf = ByteBuffer.wrap(readContents(INDEX_FILE));
+        if (buf.getInt(4) != VERSION) {
+            return;
+        }
+        buf.position(8);
+        n = buf.getInt();
+        for (int i = 0; i < n; i += 1) {
+            name = new byte[buf.getInt()];
+            buf.get(name);
+            long size = buf.getLong();
+            long mtime = buf.getLong();
+            buf.get(id);
+            entries.put(new String(name, StandardCharsets.UTF_8),
+                    new Entry(size, mtime, bytesToHex(id, 0, ID_LENGTH)));
+        }
+    }
+
+    /**
+     * returns the blob hash of the working file FILENAME, or null if there
+     * is no such file; the file is only read if its stat data changed
+     * since it was last hashed
+     */
+    public static String hashOf(String filename) {
+        File file = join(Repository.CWD, filename);
+        Entry entry;
+        long size, mtime;
+        String hash;
+
+        load();
+        if (!file.isFile()) {
+            if (entries.remove(filename) != null) {
+                dirty = true;
+            }
+            return null;
+        }
+        size = file.length();
+        mtime = file.lastModified();
+        entry = entries.get(filename);
+        if (entry != null && entry.size == size && entry.mtime == mtime
+                && mtime < indexTime) {
+            return entry.hash;
+        }
+
+        hash = sha1(file);
+        entries.put(filename, new Entry(size, mtime, hash));
+        dirty = true;
+        return hash;
+    }
+
+    /** returns the blob hash of the working file FILENAME if the index
+     *  can vouch for it without reading the file, null otherwise */
+    public static String knownHash(String filename) {
+        File file = join(Repository.CWD, filename);
+        Entry entry;
+
+        load();
+        entry = entries.get(filename);
+        if (entry == null || !file.isFile() || entry.size != file.length()
+                || entry.mtime != file.lastModified() || entry.mtime >= indexTime) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    /** remembers that the working file FILENAME, just written by gitlet,
+     *  holds the blob HASH */
+    public static void update(String filename, String hash) {
+        File file = join(Repository.CWD, filename);
+
+        load();
+        entries.put(filename, new Entry(file.length(), file.lastModified(), hash));
+        dirty = true;
+    }
+
+    /** writes the index back if anything changed */
+    public static void save() {
+        if (entries == null || !dirty) {
+            return;
+        }
+        IndexLock.run(StatCache::write);
+    }
+
+    private static void write() {
+        File tmp;
+        long written;
+
+        tmp = join(Repository.GITLET_DIR, "index.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            // the index ends up no older than the file just created
+            written = tmp.lastModified();
+            out.writeBytes("SIDX");
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                if (e.getValue().mtime >= written) {
+                    e.setValue(new Entry(-1, e.getValue().mtime, e.getValue().hash));
+                }
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().mtime);
+                out.write(hexToBytes(e.getValue().hash));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        PackFile.move(tmp, INDEX_FILE);
+        indexTime = INDEX_FILE.lastModified();
+        readStamp = stamp(INDEX_FILE);
+        dirty = false;
+    }
+
+    /** forgets the entries read if DISCARD is set or the index file changed
+     *  since, so that the next use reads the file again */
+    static void refresh(boolean discard) {
+        if (entries != null && (discard || !Objects.equals(readStamp, stamp(INDEX_FILE)))) {
+            entries = null;
+        }
+    }
+
+}
@@ -0,0 +1,351 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/** Represents the mutable state of a repository: the head, the current
+ *  branch, the branch pointers and both halves of the staging area.
+ *
+ *  Everything lives in the single file .gitlet/state: "GSTA", a version,
+ *  the head id, the current branch, then the branches, the files staged for
+ *  addition and the files staged for removal, each as a count followed by
+ *  name and 20-byte id pairs.  The file is read at most once per command,
+ *  the first time any of it is needed, and written back only if something
+ *  changed, to a temporary file that is synced and renamed over the old
+ *  one, so a crash leaves either the old state or the new one.
+ *
+ *  Commands running at once each work on the state as they read it, and
+ *  write it back holding the repository lock (see IndexLock).  If another
+ *  command recorded in between, the changes are merged: every branch
+ *  pointer, the head and every staged file this command changed must
+ *  still hold what this command read, compare-and-swap style, and then
+ *  takes its new value; everything else keeps what the other command
+ *  recorded.  So commits on different branches, or a commit and a new
+ *  branch, all go through.
+ *
+ *  A command moving the head (commit, checkout of a branch, reset, merge,
+ *  bisect) must not find that out only once it has written its commit or
+ *  the working files, so it runs through moveHead: holding the lock, it
+ *  checks that the head, the current branch and its pointer are still
+ *  what it read, takes in whatever else other commands recorded, then
+ *  acts and records before letting go.  Of two commits moving the same
+ *  branch, the later one waits for the lock and is then refused before it
+ *  has done anything; running it again commits on top of the other one.
+ *  @author Hoho
+ */
+public class State {
+
+    /** version of the file format */
+    private static final int VERSION = 1;
+
+    /** the state file */
+    static final File STATE_FILE = join(Repository.GITLET_DIR, "state");
+
+    /** whether the state has been read */
+    private static boolean loaded;
+
+    /** whether the state differs from the state file */
+    private static boolean dirty;
+
+    /** stamp of the state file as read or last written */
+    private static Object readStamp;
+
+    /** the state as read or last written, which a merge starts from */
+    private static Snapshot base;
+
+    /** reads the state file unless already done; a missing file is an
+     *  empty state */
+    public static synchronized void load() {
+        Snapshot read;
+
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        dirty = false;
+        readStamp = stamp(STATE_FILE);
+        read = Snapshot.read();
+        base = read.copy();
+        Branches.decode(read.head, read.current, read.branches);
+        StagingArea.decode(read.addition, read.removal);
+    }
+
+    /** notes that the state changed and has to be written back */
+    public static void touch() {
+        dirty = true;
+    }
+
+    /** writes the state file back if anything changed, merged with what
+     *  other commands recorded since it was read */
+    public static void record() {
+        if (!loaded || !dirty) {
+            return;
+        }
+        IndexLock.run(State::recordLocked);
+    }
+
+    /** runs ACTION, which moves the head, and records the state, all
+     *  holding the repository lock; refuses before ACTION if another
+     *  command moved the head since this one read it */
+    public static void moveHead(Runnable action) {
+        moveHeadAndGet(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /** returns what ACTION, which moves the head, returns, run as by
+     *  moveHead */
+    public static <T> T moveHeadAndGet(Supplier<T> action) {
+        return IndexLock.call(() -> {
+            T result;
+
+            requireHead();
+            result = action.get();
+            record();
+            return result;
+        });
+    }
+
+    /** refuses if another command moved the head, the current branch or
+     *  its pointer since this one read them; anything else it recorded is
+     *  read in, unless this command changed the state already */
+    private static synchronized void requireHead() {
+        Snapshot theirs;
+
+        if (!loaded || Objects.equals(readStamp, stamp(STATE_FILE))) {
+            return;
+        }
+        theirs = Snapshot.read();
+        if (!Objects.equals(base.head, theirs.head)
+                || !Objects.equals(base.current, theirs.current)
+                || !Objects.equals(base.branches.get(base.current),
+                        theirs.branches.get(theirs.current))) {
+            eventMessageHandler("The head was moved by another command.", true);
+        }
+        if (!dirty) {
+            loaded = false;
+            load();
+        }
+    }
+
+    private static synchronized void recordLocked() {
+        Snapshot ours = Snapshot.current();
+
+        if (!Objects.equals(readStamp, stamp(STATE_FILE))) {
+            ours = merge(base, ours, Snapshot.read());
+            Branches.decode(ours.head, ours.current, ours.branches);
+            StagingArea.decode(ours.addition, ours.removal);
+            ours = ours.copy();
+        }
+        write(ours);
+        base = ours;
+    }
+
+    private static void write(Snapshot state) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        File tmp;
+
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeBytes("GSTA");
+            out.writeInt(VERSION);
+            writeString(out, state.head);
+            writeString(out, state.current);
+            writeMap(out, state.branches);
+            writeMap(out, state.addition);
+            writeMap(out, state.removal);
+            out.close();
+        } catch (IOException excp) {
+            throw error("Internal error encoding state.");
+        }
+
+        tmp = join(Repository.GITLET_DIR, "state.tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(stream.toByteArray());
+            out.getFD().sync();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        PackFile.move(tmp, STATE_FILE);
+        readStamp = stamp(STATE_FILE);
+        dirty = false;
+    }
+
+    /** returns the changes from BASE to OURS applied to THEIRS, the state
+     *  another command recorded meanwhile; aborts if both changed the same
+     *  thing */
+    private static Snapshot merge(Snapshot base, Snapshot ours, Snapshot theirs) {
+        Snapshot result = theirs;
+
+        if (!Objects.equals(base.head, ours.head) || !Objects.equals(base.current, ours.current)) {
+            if (!Objects.equals(base.head, theirs.head)
+                    || !Objects.equals(base.current, theirs.current)) {
+                eventMessageHandler("The head was moved by another command.", true);
+            }
+            result.head = ours.head;
+            result.current = ours.current;
+        }
+        mergeMap(base.branches, ours.branches, result.branches,
+                "Branch %s was moved by another command.");
+        mergeMap(base.addition, ours.addition, result.addition,
+                "%s was staged by another command.");
+        mergeMap(base.removal, ours.removal, result.removal,
+                "%s was staged by another command.");
+        return result;
+    }
+
+    /** applies the changes from BASE to OURS to THEIRS, entry by entry;
+     *  aborts with CONFLICT, formatted with the name, if THEIRS changed an
+     *  entry OURS changed too */
+    private static void mergeMap(Map<String, String> base, Map<String, String> ours,
+                                 Map<String, String> theirs, String conflict) {
+        TreeSet<String> names = new TreeSet<>(base.keySet());
+
+        names.addAll(ours.keySet());
+        for (String name : names) {
+            if (same(base, ours, name)) {
+                continue;
+            }
+            if (!same(base, theirs, name) && !same(ours, theirs, name)) {
+                eventMessageHandler(String.format(conflict, name), true);
+            }
+            if (ours.containsKey(name)) {
+                theirs.put(name, ours.get(name));
+            } else {
+                theirs.remove(name);
+            }
+        }
+    }
+
+    /** returns whether A and B hold the same entry for NAME, or neither */
+    private static boolean same(Map<String, String> a, Map<String, String> b, String name) {
+        return a.containsKey(name) == b.containsKey(name)
+                && Objects.equals(a.get(name), b.get(name));
+    }
+
+    /** forgets the state read, so that the next use reads the file again,
+     *  if DISCARD is set or the file changed since; the daemon keeps the
+     *  state between commands this way */
+    static synchronized void refresh(boolean discard) {
+        if (loaded && (discard || !Objects.equals(readStamp, stamp(STATE_FILE)))) {
+            loaded = false;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** writes the names of MAP with their ids, an absent id as all zeros */
+    private static void writeMap(DataOutputStream out, Map<String, String> map)
+        throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            out.write(entry.getValue() == null
+                    ? new byte[UID_LENGTH / 2] : hexToBytes(entry.getValue()));
+        }
+    }
+
+    private static TreeMap<String, String> readMap(ByteBuffer buf) {
+        TreeMap<String, String> result = new TreeMap<>();
+        byte[] id = new byte[UID_LENGTH / 2];
+        String name;
+        int n = buf.getInt();
+
+        for (int i = 0; i < n; i += 1) {
+            name = readString(buf);
+            buf.get(id);
+            result.put(name, isZero(id) ? null : bytesToHex(id, 0, id.length));
+        }
+        return result;
+    }
+
+    /** Represents the whole state at one point in time. */
+    private static class Snapshot {
+        private String head;
+        private String current;
+        private TreeMap<String, String> branches;
+        private TreeMap<String, String> addition;
+        private TreeMap<String, String> removal;
+
+        /** returns the state in the state file; a missing file is an empty
+         *  state */
+        static Snapshot read() {
+            Snapshot result = new Snapshot();
+            ByteBuffer buf;
+
+            if (!STATE_FILE.isFile()) {
+                result.branches = new TreeMap<>();
+                result.addition = new TreeMap<>();
+                result.removal = new TreeMap<>();
+                return result;
+            }
+            buf = ByteBuffer.wrap(readContents(STATE_FILE));
+            if (buf.getInt(4) != VERSION) {
+                throw error("Unknown state format.");
+            }
+            buf.position(8);
+            result.head = readString(buf);
+            result.current = readString(buf);
+            result.branches = readMap(buf);
+            result.addition = readMap(buf);
+            result.removal = readMap(buf);
+            return result;
+        }
+
+        /** returns a copy of the state in memory */
+        static Snapshot current() {
+            Snapshot result = new Snapshot();
+
+            result.head = Branches.getHead();
+            result.current = Branches.getCurrent();
+            result.branches = new TreeMap<>(Branches.getBranches());
+            result.addition = new TreeMap<>(StagingArea.getStagedForAddition());
+            result.removal = new TreeMap<>(StagingArea.getStagedForRemoval());
+            return result;
+        }
+
+        Snapshot copy() {
+            Snapshot result = new Snapshot();
+
+            result.head = head;
+            result.current = current;
+            result.branches = new TreeMap<>(branches);
+            result.addition = new TreeMap<>(addition);
+            result.removal = new TreeMap<>(removal);
+            return result;
+        }
+    }
+
+    private static boolean isZero(byte[] id) {
+        for (byte b : id) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,79 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static gitlet.Utils.*;
+
+/** Represents an object as the object store hands it out: its bytes as
+ *  stored (a blob deflated, or the manifest of a chunked blob), or, for a
+ *  blob a pack keeps as a delta, the contents the delta resolves to.
+ *  Those are raw already, so they are never deflated only to be inflated
+ *  again by the reader; they are only deflated when written into a pack.
+ *  @author Hoho
+ */
+class StoredObject {
+
+    /** the bytes as stored, read-only */
+    private final ByteBuffer data;
+    /** the resolved contents of a delta, not to be modified, or null */
+    private final byte[] raw;
+
+    /** an object stored as STORED */
+    StoredObject(ByteBuffer stored) {
+        this.data = stored;
+        this.raw = null;
+    }
+
+    /** a blob resolved to the contents RAW, which may be shared */
+    StoredObject(byte[] raw) {
+        this.data = ByteBuffer.wrap(raw).asReadOnlyBuffer();
+        this.raw = raw;
+    }
+
+    /** the bytes as stored, or the raw contents if isRaw */
+    ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    /** true if getData holds the raw contents of a blob */
+    boolean isRaw() {
+        return raw != null;
+    }
+
+    /** true if this is the manifest of a chunked blob (see Chunks) */
+    boolean isManifest() {
+        return raw == null && Chunks.isManifest(data);
+    }
+
+    /** the contents of this blob, inflated unless raw already; they must
+     *  not be modified */
+    byte[] bytes() {
+        return raw != null ? raw : inflate(data);
+    }
+
+    /** the length of the contents of this blob */
+    long length() {
+        return raw != null ? raw.length : inflatedLength(data);
+    }
+
+    /** writes the contents of this blob to OUT, inflated chunk by chunk */
+    void writeContentsTo(OutputStream out) throws IOException {
+        if (raw != null) {
+            out.write(raw);
+        } else {
+            inflateTo(data, out);
+        }
+    }
+
+    /** the bytes the way a pack stores a whole object: as stored, or the
+     *  raw contents deflated at LEVEL */
+    ByteBuffer stored(int level) {
+        if (raw != null) {
+            return ByteBuffer.wrap(deflate(raw, level));
+        }
+        return getData();
+    }
+
+}
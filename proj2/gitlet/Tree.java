@@ -0,0 +1,329 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Represents a tree object, the content-addressed listing of one directory.
+ *  A tree maps names to ids: a plain name refers to a blob, a name ending
+ *  in '/' refers to the tree of a subdirectory.  Since a tree is named by
+ *  the hash of its listing, two commits that share an unchanged directory
+ *  share its tree, and comparing two directories is comparing two ids.
+ *
+ *  Encoding: version byte, number of entries, then the entries sorted by
+ *  name, each as name length, name and the id as 20 raw bytes.
+ *  @author Hoho
+ */
+public class Tree {
+
+    /** version of the binary format */
+    private static final byte VERSION = 1;
+
+    /** length of a raw SHA-1 id */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    /** the id of the empty tree */
+    static final String EMPTY = sha1(encode(new TreeMap<>()));
+
+    /**
+     * returns the entries of the tree HASH, a map from names to ids where
+     * names of subdirectories end with '/'; the map is the caller's to change
+     */
+    @SuppressWarnings("unchecked")
+    public static TreeMap<String, String> getEntries(String hash) {
+        TreeMap<String, String> result = new TreeMap<>();
+        ByteBuffer buf;
+        byte[] name, id = new byte[ID_LENGTH];
+        int n;
+
+        if (hash.equals(EMPTY)) {
+            return result;
+        }
+        // the cache keeps its own copy, since callers may change theirs
+        result = ObjectCache.get(hash, TreeMap.class);
+        if (result != null) {
+            return new TreeMap<>(result);
+        }
+        result = new TreeMap<>();
+        buf = ObjectStore.read(ObjectStore.TREE, hash);
+        if (buf == null) {
+            throw error("Missing tree %s.", hash);
+        }
+        buf = buf.duplicate();
+        if (buf.get() != VERSION) {
+            throw error("Unknown tree format in %s.", hash);
+        }
+        n = buf.getInt();
+        for (int i = 0; i < n; i += 1) {
+            name = new byte[buf.getInt()];
+            buf.get(name);
+            buf.get(id);
+            result.put(new String(name, StandardCharsets.UTF_8), bytesToHex(id, 0, ID_LENGTH));
+        }
+        ObjectCache.put(hash, new TreeMap<>(result),
+                m -> ObjectCache.ENTRY_OVERHEAD * (1 + m.size()));
+        return result;
+    }
+
+    /**
+     * adds to OUT, as id to type, the tree HASH and the trees and blobs
+     * under it that the tree BASE does not have at the same path (all of
+     * them if BASE is null); subtrees equal in both are skipped whole.
+     * BASES gets, for every blob added, the blob BASE has at its path if
+     * any
+     */
+    static void collectChanged(String hash, String base, Map<String, Byte> out,
+                               Map<String, String> bases) {
+        TreeMap<String, String> entries, baseEntries;
+        String old;
+
+        if (hash.equals(base) || out.containsKey(hash)) {
+            return;
+        }
+        out.put(hash, ObjectStore.TREE);
+        entries = getEntries(hash);
+        baseEntries = base == null ? new TreeMap<>() : getEntries(base);
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            old = baseEntries.get(entry.getKey());
+            if (entry.getKey().endsWith("/")) {
+                collectChanged(entry.getValue(), old, out, bases);
+            } else if (!entry.getValue().equals(old)
+                    && out.putIfAbsent(entry.getValue(), ObjectStore.BLOB) == null
+                    && old != null) {
+                bases.put(entry.getValue(), old);
+            }
+        }
+    }
+
+    /** stores a tree holding ENTRIES unless it already exists, returns its id */
+    public static String write(TreeMap<String, String> entries) {
+        byte[] data = encode(entries);
+        String hash = sha1(data);
+
+        if (!ObjectStore.contains(ObjectStore.TREE, hash)) {
+            ObjectStore.writeLoose(ObjectStore.TREE, hash, data);
+        }
+        return hash;
+    }
+
+    private static byte[] encode(TreeMap<String, String> entries) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        try {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.write(hexToBytes(entry.getValue()));
+            }
+            out.close();
+        } catch (IOException excp) {
+            throw error("Internal error encoding tree.");
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * returns the id of the tree obtained from the tree BASE by applying
+     * CHANGES, a map from paths to new blob ids (null removes the path);
+     * only the trees along the changed paths are rewritten, every other
+     * subtree is shared with BASE by id
+     */
+    public static String update(String base, Map<String, String> changes) {
+        TreeMap<String, String> entries = getEntries(base);
+        TreeMap<String, TreeMap<String, String>> nested = new TreeMap<>();
+        String dir, sub;
+        int slash;
+
+        if (changes.isEmpty()) {
+            return base;
+        }
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            slash = change.getKey().indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(change.getKey());
+                } else {
+                    entries.put(change.getKey(), change.getValue());
+                }
+            } else {
+                dir = change.getKey().substring(0, slash + 1);
+                nested.computeIfAbsent(dir, k -> new TreeMap<>())
+                        .put(change.getKey().substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> entry : nested.entrySet()) {
+            sub = update(entries.getOrDefault(entry.getKey(), EMPTY), entry.getValue());
+            if (sub.equals(EMPTY)) {
+                entries.remove(entry.getKey());
+            } else {
+                entries.put(entry.getKey(), sub);
+            }
+        }
+        return write(entries);
+    }
+
+    /** returns the blob id of PATH in the tree HASH, or null if absent */
+    public static String lookup(String hash, String path) {
+        int slash = path.indexOf('/');
+        String id;
+
+        if (slash < 0) {
+            return getEntries(hash).get(path);
+        }
+        id = getEntries(hash).get(path.substring(0, slash + 1));
+        return id == null ? null : lookup(id, path.substring(slash + 1));
+    }
+
+    /**
+     * returns the blob ids of those of PATHS present in the tree HASH,
+     * reading every tree on the way only once
+     */
+    public static TreeMap<String, String> lookupAll(String hash, Set<String> paths) {
+        TreeMap<String, String> result = new TreeMap<>();
+        TreeMap<String, Set<String>> nested = new TreeMap<>();
+        TreeMap<String, String> entries;
+        String id;
+        int slash;
+
+        if (paths.isEmpty()) {
+            return result;
+        }
+        entries = getEntries(hash);
+        for (String path : paths) {
+            slash = path.indexOf('/');
+            if (slash < 0) {
+                if (entries.containsKey(path)) {
+                    result.put(path, entries.get(path));
+                }
+            } else {
+                nested.computeIfAbsent(path.substring(0, slash + 1), k -> new TreeSet<>())
+                        .add(path.substring(slash + 1));
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : nested.entrySet()) {
+            id = entries.get(entry.getKey());
+            if (id != null) {
+                for (Map.Entry<String, String> found
+                        : lookupAll(id, entry.getValue()).entrySet()) {
+                    result.put(entry.getKey() + found.getKey(), found.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /** returns a map from every file path under the tree HASH to its blob id */
+    public static TreeMap<String, String> flatten(String hash) {
+        TreeMap<String, String> result = new TreeMap<>();
+        flatten(hash, "", result);
+        return result;
+    }
+
+    private static void flatten(String hash, String prefix, TreeMap<String, String> result) {
+        for (Map.Entry<String, String> entry : getEntries(hash).entrySet()) {
+            if (entry.getKey().endsWith("/")) {
+                flatten(entry.getValue(), prefix + entry.getKey(), result);
+            } else {
+                result.put(prefix + entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * returns the paths a merge has to look at: those whose version in the
+     * given tree GIVEN differs both from the split tree SPLIT and from the
+     * current tree CURRENT (null trees count as empty); a subdirectory is
+     * skipped without being read as soon as its id rules this out
+     */
+    public static Set<String> mergeCandidates(String split, String current, String given) {
+        Set<String> result = new TreeSet<>();
+        mergeCandidates(split, current, given, "", result);
+        return result;
+    }
+
+    private static void mergeCandidates(String split, String current, String given,
+                                        String prefix, Set<String> result) {
+        TreeMap<String, String> s, c, g;
+        Set<String> names = new TreeSet<>();
+        String sh, ch, gh;
+
+        if (equal(given, split) || equal(given, current)) {
+            return;
+        }
+        s = split == null ? new TreeMap<>() : getEntries(split);
+        c = current == null ? new TreeMap<>() : getEntries(current);
+        g = given == null ? new TreeMap<>() : getEntries(given);
+        names.addAll(s.keySet());
+        names.addAll(c.keySet());
+        names.addAll(g.keySet());
+
+        for (String name : names) {
+            sh = s.get(name);
+            ch = c.get(name);
+            gh = g.get(name);
+            if (equal(gh, sh) || equal(gh, ch)) {
+                continue;
+            }
+            if (name.endsWith("/")) {
+                mergeCandidates(sh, ch, gh, prefix + name, result);
+            } else {
+                result.add(prefix + name);
+            }
+        }
+    }
+
+    /**
+     * puts into REMOVED the files under the tree FROM missing from the tree
+     * TO, and into ADDED the files under TO missing from FROM, with their
+     * blob ids (null trees count as empty); a subdirectory is skipped
+     * without being read as soon as both trees share its id
+     */
+    public static void diff(String from, String to, TreeMap<String, String> removed,
+                            TreeMap<String, String> added) {
+        diff(from, to, "", removed, added);
+    }
+
+    private static void diff(String from, String to, String prefix,
+                             TreeMap<String, String> removed, TreeMap<String, String> added) {
+        TreeMap<String, String> f, t;
+        Set<String> names = new TreeSet<>();
+        String fh, th;
+
+        if (equal(from, to)) {
+            return;
+        }
+        f = from == null ? new TreeMap<>() : getEntries(from);
+        t = to == null ? new TreeMap<>() : getEntries(to);
+        names.addAll(f.keySet());
+        names.addAll(t.keySet());
+
+        for (String name : names) {
+            fh = f.get(name);
+            th = t.get(name);
+            if (name.endsWith("/")) {
+                diff(fh, th, prefix + name, removed, added);
+            } else if (th == null) {
+                removed.put(prefix + name, fh);
+            } else if (fh == null) {
+                added.put(prefix + name, th);
+            }
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
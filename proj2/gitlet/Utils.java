@@ -6,17 +6,27 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 
 /** Assorted utilities.
  *
@@ -30,6 +40,9 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+    /** The size of the buffer used when streaming file contents. */
+    static final int STREAM_CHUNK = 64 * 1024;
+
     /* SHA-1 HASH VALUES. */
 
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
@@ -56,6 +69,119 @@ class Utils {
         }
     }
 
+    /** Returns the SHA-1 hash of the contents of FILE, read in fixed-size
+     *  chunks so that the whole file is never held in memory. */
+    static String sha1(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return digestToHex(copyAndDigest(in, null));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Streams IN to OUT (if not null) in fixed-size chunks and returns the
+     *  SHA-1 digest of everything read. */
+    static MessageDigest copyAndDigest(InputStream in, OutputStream out)
+        throws IOException {
+        byte[] chunk = new byte[STREAM_CHUNK];
+        MessageDigest md;
+        int n;
+
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        while ((n = in.read(chunk)) > 0) {
+            md.update(chunk, 0, n);
+            if (out != null) {
+                out.write(chunk, 0, n);
+            }
+        }
+        return md;
+    }
+
+    /** Streams the zlib data remaining in SRC to OUT, inflated in
+     *  fixed-size chunks so that the whole result is never held in memory.
+     *  Throws IllegalArgumentException if SRC is not a complete zlib
+     *  stream. */
+    static void inflateTo(ByteBuffer src, OutputStream out) throws IOException {
+        Inflater inflater = new Inflater();
+        byte[] chunk = new byte[STREAM_CHUNK];
+        int n;
+
+        try {
+            inflater.setInput(src.duplicate());
+            while (!inflater.finished()) {
+                n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("truncated compressed object");
+                }
+                out.write(chunk, 0, n);
+            }
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Returns the length of the zlib data remaining in SRC once inflated,
+     *  inflating it chunk by chunk into a scratch buffer. */
+    static long inflatedLength(ByteBuffer src) {
+        long[] length = new long[1];
+
+        try {
+            inflateTo(src, new OutputStream() {
+                @Override
+                public void write(int b) {
+                    length[0] += 1;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    length[0] += len;
+                }
+            });
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return length[0];
+    }
+
+    /** Returns DATA compressed as a zlib stream at level LEVEL. */
+    static byte[] deflate(byte[] data, int level) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(level);
+
+        try (OutputStream out = new DeflaterOutputStream(stream, deflater)) {
+            out.write(data);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        return stream.toByteArray();
+    }
+
+    /** Returns the zlib data remaining in SRC, inflated. */
+    static byte[] inflate(ByteBuffer src) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            inflateTo(src, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns the finished digest of MD as a hexadecimal UID. */
+    static String digestToHex(MessageDigest md) {
+        byte[] digest = md.digest();
+        return bytesToHex(digest, 0, digest.length);
+    }
+
     /** Returns the SHA-1 hash of the concatenation of the strings in
      *  VALS. */
     static String sha1(List<Object> vals) {
@@ -137,6 +263,42 @@ class Utils {
         }
     }
 
+    /** Return the entire contents of FILE as a read-only buffer mapped
+     *  straight from the file, so that no copy is made on the heap.  FILE
+     *  must be a normal file.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static ByteBuffer mapContents(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Write the remaining bytes of CONTENTS to FILE, creating or
+     *  overwriting it as needed.  A mapped CONTENTS is copied by the
+     *  channel without passing through a heap array.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static void writeContents(File file, ByteBuffer contents) {
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            contents = contents.duplicate();
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -205,6 +367,20 @@ class Utils {
         return Paths.get(first.getPath(), others).toFile();
     }
 
+    /** returns a value that changes whenever FILE is written, replaced or
+     *  deleted: its file key (the inode), modification time and size, or
+     *  null if there is no such file */
+    static Object stamp(File file) {
+        BasicFileAttributes attrs;
+
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException excp) {
+            return null;
+        }
+        return Arrays.asList(attrs.fileKey(), attrs.lastModifiedTime(), attrs.size());
+    }
+
 
     /* SERIALIZATION UTILITIES */
 
@@ -221,6 +397,29 @@ class Utils {
         }
     }
 
+    /* HASH ENCODING */
+
+    /** Returns the 20 raw bytes of the hexadecimal SHA-1 UID HASH. */
+    static byte[] hexToBytes(String hash) {
+        byte[] result = new byte[hash.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(
+                hash.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal form of the LEN raw bytes of BYTES starting
+     *  at OFFSET. */
+    static String bytesToHex(byte[] bytes, int offset, int len) {
+        StringBuilder result = new StringBuilder(2 * len);
+        for (int i = offset; i < offset + len; i += 1) {
+            result.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            result.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return result.toString();
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */
@@ -255,12 +454,13 @@ class Utils {
         }
     }
 
+    /** prints MSG, or if ABORT ends the command with MSG as the message of
+     *  a GitletException, which Main prints; the daemon keeps running */
     static void eventMessageHandler(String msg, boolean abort) {
-        //throw new GitletException(String.format(msg));
-        System.out.println(msg);
         if (abort) {
-            System.exit(0);
+            throw new GitletException(msg);
         }
+        System.out.println(msg);
     }
 
 }